@@ -0,0 +1,21 @@
+package org.cellx.logish;
+
+import org.cellx.logish.Logish.Goal;
+
+/**
+ * A relation given by a table of facts, each a tuple of ground terms.
+ */
+public interface Facts {
+
+    int arity();
+
+    /**
+     * Returns the number of facts.
+     */
+    int size();
+
+    /**
+     * A goal that succeeds once for each fact unifying with the arguments.
+     */
+    Goal query(Object... args);
+}
@@ -14,13 +14,17 @@ import io.vavr.control.Option;
 import org.cellx.logish.Logish.*;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import static org.cellx.logish.Logish.*;
 
 @SuppressWarnings({"unused", "SuspiciousNameCombination"})
 public class Fd {
 
-    static final String DOM_DOMAIN = "fd:";
+    static final AttributeDomain DOM_DOMAIN = AttributeDomain.register("fd:", true);
 
     static class DomainAttribute implements Constraint, Attribute {
 
@@ -37,11 +41,6 @@ public class Fd {
             return domain.symbolicRepr(variable);
         }
 
-        @Override
-        public final boolean delegating() {
-            return true;
-        }
-
         @Override
         final public Option<Subst> validate(Var v, Object o, Subst subst) {
             if (!(o instanceof Integer && domain.accepts((Integer) o))) return Option.none();
@@ -91,11 +90,42 @@ public class Fd {
 
         abstract Tuple2<Domain, Domain> bisect();
 
+        /**
+         * Returns a value of a bounded domain by its position in increasing order.
+         *
+         * @param k the position, from 0 to {@code size() - 1}
+         * @return the value
+         */
+        int nth(int k) {
+            return get().iterator().drop(k).next();
+        }
+
+        /**
+         * Removes a set of values from a definite domain.
+         *
+         * @param values the values to remove
+         * @return the domain without the given values
+         */
+        Domain diff(SortedSet<Integer> values) {
+            return Domain.of(get().diff(values));
+        }
+
         static Domain of(int lowerBound, int upperBound) {
             return new Bounded(lowerBound, upperBound);
         }
 
+        /**
+         * Creates a definite domain from a set of values.
+         *
+         * <p>Compact sets are represented as {@link Bits}, and the rest as {@link Subset}.</p>
+         *
+         * @param values the set of values
+         * @return the domain
+         */
         static Domain of(SortedSet<Integer> values) {
+            if (!values.isEmpty() && Bits.isCompact(values.min().get(), values.max().get(), values.size())) {
+                return Bits.ofAll(values);
+            }
             return new Subset(values);
         }
 
@@ -198,14 +228,14 @@ public class Fd {
 
         @Override
         int size() {
-            final int result = ub - lb + 1;
-            return Math.max(result, 0);
+            final long result = (long) ub - lb + 1;
+            return (int) Math.max(Math.min(result, Integer.MAX_VALUE), 0);
         }
 
         @Override
         Domain intersect(Domain other) {
-            if (other.isDefinite()) {
-                return Domain.of(other.get().filter(x -> lb <= x && x <= ub));
+            if (other.isDefinite() || other instanceof Intervals) {
+                return other.intersect(this);
             } else if (other.isBounded()) {
                 return Domain.of(Math.max(lb, other.getLowerBound()), Math.min(ub, other.getUpperBound()));
             } else {
@@ -220,9 +250,13 @@ public class Fd {
             if (other.isDefinite()) {
                 final int lb2 = other.getLowerBound(), ub2 = other.getUpperBound();
                 if (lb < lb2 || ub > ub2) return false;
-                final SortedSet<Integer> set2 = other.get();
-                if (set2.size() < ub - lb + 1) return false;
-                return set2.containsAll(Stream.rangeClosed(lb, ub));
+                if (other.size() < (long) ub - lb + 1) return false;
+                for (int x = lb; x <= ub; x++) {
+                    if (!other.accepts(x)) return false;
+                }
+                return true;
+            } else if (other instanceof Intervals) {
+                return ((Intervals) other).includes(lb, ub);
             } else if (other.isBounded()) {
                 final int lb2 = other.getLowerBound(), ub2 = other.getUpperBound();
                 return lb >= lb2 && ub <= ub2;
@@ -231,13 +265,23 @@ public class Fd {
             }
         }
 
+        @Override
+        Domain diff(SortedSet<Integer> values) {
+            return Intervals.diff(new int[]{lb}, new int[]{ub}, values);
+        }
+
         @Override
         Tuple2<Domain, Domain> bisect() {
-            if (ub - lb + 1 < 2) throw new IllegalStateException();
-            final int midpoint = (ub + lb) / 2;
+            if ((long) ub - lb + 1 < 2) throw new IllegalStateException();
+            final int midpoint = (int) Math.floorDiv((long) ub + lb, 2L);
             return Tuple.of(Bounded.of(lb, midpoint), Bounded.of(midpoint + 1, ub));
         }
 
+        @Override
+        int nth(int k) {
+            return lb + k;
+        }
+
         @Override
         SortedSet<Integer> get() {
             throw new UnsupportedOperationException();
@@ -400,11 +444,12 @@ public class Fd {
 
         @Override
         public Domain intersect(Domain other) {
-            if (other.isDefinite()) {
-                return new Subset(subset.intersect(((Subset) other).subset));
+            if (other instanceof Subset) {
+                return Domain.of(subset.intersect(((Subset) other).subset));
+            } else if (other.isDefinite()) {
+                return Domain.of(subset.filter(other::accepts));
             } else if (other.isBounded()) {
-                final int lb2 = other.getLowerBound(), ub2 = other.getUpperBound();
-                return Domain.of(subset.filter(x -> lb2 <= x && x <= ub2));
+                return Domain.of(subset.filter(other::accepts));
             } else {
                 return this;
             }
@@ -415,8 +460,7 @@ public class Fd {
             if (other.isDefinite()) {
                 return other.get().containsAll(get());
             } else if (other.isBounded()) {
-                final int lb2 = other.getLowerBound(), ub2 = other.getUpperBound();
-                return !get().exists(x -> x < lb2 || x > ub2);
+                return get().forAll(other::accepts);
             } else {
                 return true;
             }
@@ -426,7 +470,7 @@ public class Fd {
         Tuple2<Domain, Domain> bisect() {
             final int size = subset.size();
             if (size < 2) throw new IllegalStateException();
-            return Tuple.of(Subset.of(subset.take(size / 2)), Subset.of(subset.drop(size / 2)));
+            return Tuple.of(Domain.of(subset.take(size / 2)), Domain.of(subset.drop(size / 2)));
         }
 
         @Override
@@ -443,203 +487,854 @@ public class Fd {
         }
     }
 
-    static class DomGoal extends Goal {
-        final Var v0;
-        final Domain domain;
+    /**
+     * A definite domain represented as a dense bit set.
+     *
+     * <p>Bit {@code i} of word {@code j} stands for value {@code offset + 64 * j + i}.  The offset is always
+     * a multiple of 64, so that the words of any two bit sets line up, and intersection, inclusion and removal
+     * can be computed a word at a time.  Bounds and size are computed once, on construction.</p>
+     */
+    static class Bits extends Domain {
+        /**
+         * Maximal span (difference between the upper and the lower bound) of a bit set domain.
+         */
+        static final int MAX_SPAN = 1 << 16;
 
-        DomGoal(Var v, Domain domain) {
-            this.v0 = v;
-            this.domain = domain;
+        final int offset;
+        final long[] words;
+        final int min, max, size;
+
+        /**
+         * Values in the domain, created on demand by {@link #get()}.
+         */
+        private SortedSet<Integer> values;
+
+        private Bits(int offset, long[] words) {
+            this.offset = offset;
+            this.words = words;
+            int size = 0, first = -1, last = -1;
+            for (int j = 0; j < words.length; j++) {
+                if (words[j] == 0) continue;
+                if (first < 0) first = j;
+                last = j;
+                size += Long.bitCount(words[j]);
+            }
+            this.size = size;
+            if (size == 0) {
+                this.min = 0;
+                this.max = -1;
+            } else {
+                this.min = offset + 64 * first + Long.numberOfTrailingZeros(words[first]);
+                this.max = offset + 64 * last + 63 - Long.numberOfLeadingZeros(words[last]);
+            }
         }
 
-        @Override
-        public Series<Subst> apply(Subst subst) {
-            // Fail immediately if the constraint is empty
-            if (domain.isEmpty()) return Series.empty();
+        /**
+         * Checks if a set of values is dense enough to be represented as a bit set.
+         *
+         * @param lb   the least value
+         * @param ub   the greatest value
+         * @param size the number of values
+         * @return {@code true} if there is on average at least one value per word
+         */
+        static boolean isCompact(int lb, int ub, int size) {
+            final long span = (long) ub - lb + 1;
+            return span <= MAX_SPAN && span <= 64L * size;
+        }
 
-            final Object o = walk(v0, subst);
-            if (o instanceof Integer) {
-                return domain.accepts((Integer) o) ? Series.singleton(subst) : Series.empty();
-            } else if (!(o instanceof Var)) {
-                return Series.empty();
-            }
+        static int alignedOffset(int x) {
+            return Math.floorDiv(x, 64) * 64;
+        }
 
-            final Domain newConstraint;
-            final Var v = (Var) o;
-            final Option<Attribute> optOldDomain = getAttribute(v, subst, DOM_DOMAIN);
-            final Subst subst1;
-            if (optOldDomain.isEmpty()) {
-                newConstraint = domain;
-                subst1 = subst;
-            } else {
-                final Option<Tuple2<Option<Attribute>, Subst>> combination =
-                        optOldDomain.get().combine(v, new DomainAttribute(v, domain), subst);
-                if (combination.isEmpty()) return Series.empty();
-                newConstraint = ((DomainAttribute) combination.get()._1.get()).domain;
-                subst1 = combination.get()._2;
+        /**
+         * Makes a bit set, dropping the leading and trailing empty words.
+         *
+         * @param offset the value of the first bit in {@code words}
+         * @param words  the bits, which become owned by the result when not trimmed
+         * @return the bit set domain
+         */
+        static Bits of(int offset, long[] words) {
+            int from = 0, to = words.length;
+            while (from < to && words[from] == 0) from++;
+            while (to > from && words[to - 1] == 0) to--;
+            if (from == 0 && to == words.length) return new Bits(offset, words);
+            return new Bits(offset + 64 * from, Arrays.copyOfRange(words, from, to));
+        }
+
+        static Bits range(int lb, int ub) {
+            if (ub < lb) return new Bits(0, new long[0]);
+            final int offset = alignedOffset(lb);
+            final long[] words = new long[(ub - offset) / 64 + 1];
+            for (int j = 0; j < words.length; j++) {
+                final int base = offset + 64 * j;
+                final int from = Math.max(lb - base, 0), to = (int) Math.min((long) ub - base, 63);
+                words[j] = (-1L >>> (63 - to + from)) << from;
             }
+            return new Bits(offset, words);
+        }
 
-            if (newConstraint.isEmpty()) {
-                return Series.empty();
+        static Bits ofAll(SortedSet<Integer> values) {
+            if (values.isEmpty()) return new Bits(0, new long[0]);
+            final int offset = alignedOffset(values.min().get());
+            final long[] words = new long[(values.max().get() - offset) / 64 + 1];
+            for (final int x : values) {
+                words[(x - offset) >>> 6] |= 1L << (x - offset);
             }
+            final Bits result = new Bits(offset, words);
+            result.values = values;
+            return result;
+        }
 
-            return Series.of(Solver.addDomain(new DomainAttribute(v, newConstraint), subst1));
+        /**
+         * Gets the word standing for values {@code base .. base + 63}, where {@code base} is a multiple of 64.
+         */
+        long wordAt(int base) {
+            final long j = ((long) base - offset) / 64;
+            return j < 0 || j >= words.length ? 0 : words[(int) j];
         }
-    }
 
-    public static Goal dom(Var v, Seq<Integer> elements) {
-        return new DomGoal(v, new Subset(TreeSet.ofAll(elements)));
-    }
+        /**
+         * Restricts this bit set to an interval.
+         */
+        Bits restrict(int lb, int ub) {
+            if (lb <= min && max <= ub) return this;
+            final int lo = Math.max(lb, min), hi = Math.min(ub, max);
+            if (hi < lo) return new Bits(0, new long[0]);
+            final int offset2 = alignedOffset(lo);
+            final long[] words2 = new long[(hi - offset2) / 64 + 1];
+            for (int j = 0; j < words2.length; j++) {
+                words2[j] = wordAt(offset2 + 64 * j);
+            }
+            words2[0] &= -1L << (lo - offset2);
+            words2[words2.length - 1] &= -1L >>> (63 - (hi - offset2) % 64);
+            return Bits.of(offset2, words2);
+        }
 
-    public static Goal domAll(Seq<Integer> elements, Var... vars) {
-        return Goal.seq(List.ofAll(Arrays.stream(vars))
-                .map(v -> new DomGoal(v, new Subset(TreeSet.ofAll(elements)))));
-    }
+        @Override
+        public String toString() {
+            return new Subset(get()).toString();
+        }
 
-    public static Goal in(Var v, int... elements) {
-        return dom(v, List.ofAll(elements));
-    }
+        @Override
+        boolean isDefinite() {
+            return true;
+        }
 
-    public static Goal range(Var v, int lb, int ub) {
-        return new DomGoal(v, new Subset(TreeSet.rangeClosed(lb, ub)));
-    }
+        @Override
+        boolean isBounded() {
+            return size > 0;
+        }
 
-    // -- Arithmetic constraints --
+        @Override
+        boolean isEmpty() {
+            return size == 0;
+        }
 
-    public static final String ARI_DOMAIN = "fda:";
+        @Override
+        boolean hasSolution() {
+            return size == 1;
+        }
 
-    static class FdAttribute implements Attribute {
-        final List<FdConstraint> constraints;
+        @Override
+        int solution() {
+            if (size != 1) throw new IllegalStateException();
+            return min;
+        }
 
-        public FdAttribute(List<FdConstraint> constraints) {
-            this.constraints = constraints;
+        @Override
+        int size() {
+            return size;
         }
 
         @Override
-        public boolean delegating() {
-            return false;
+        int getLowerBound() {
+            if (size == 0) throw new NoSuchElementException();
+            return min;
         }
 
         @Override
-        public Option<Subst> validate(Var v, Object o, Subst subst) {
-            return Option.of(subst);
+        int getUpperBound() {
+            if (size == 0) throw new NoSuchElementException();
+            return max;
         }
 
         @Override
-        public List<Constraint> constraints() {
-            return List.narrow(constraints);
+        boolean accepts(int x) {
+            if (x < min || x > max) return false;
+            return (words[(x - offset) >>> 6] & (1L << (x - offset))) != 0;
         }
 
         @Override
-        public Option<Tuple2<Option<Attribute>, Subst>> combine(Var v, Attribute other, Subst subst) {
-            final FdAttribute otherAri = (FdAttribute) other;
-            return Option.of(Tuple.of(
-                    Option.of(new FdAttribute(constraints.appendAll(otherAri.constraints.filter(c -> !constraints.contains(c))))),
-                    subst
-            ));
+        SortedSet<Integer> get() {
+            SortedSet<Integer> result = values;
+            if (result == null) {
+                final java.util.List<Integer> elements = new ArrayList<>(size);
+                for (int j = 0; j < words.length; j++) {
+                    long word = words[j];
+                    while (word != 0) {
+                        elements.add(offset + 64 * j + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+                result = TreeSet.ofAll(elements);
+                values = result;
+            }
+            return result;
         }
-    }
 
-    interface FdConstraint extends Constraint {
-        /**
-         * Gets the variables over which this constraint ranges.
-         *
-         * @return The set of variables.
-         */
-        Set<Var> vars();
+        @Override
+        Domain intersect(Domain other) {
+            if (other instanceof Bits) {
+                final Bits bits = (Bits) other;
+                if (size == 0) return this;
+                if (bits.size == 0) return bits;
+                final int lo = Math.max(min, bits.min), hi = Math.min(max, bits.max);
+                if (hi < lo) return new Bits(0, new long[0]);
+                final int offset2 = alignedOffset(lo);
+                final long[] words2 = new long[(hi - offset2) / 64 + 1];
+                for (int j = 0; j < words2.length; j++) {
+                    final int base = offset2 + 64 * j;
+                    words2[j] = wordAt(base) & bits.wordAt(base);
+                }
+                return Bits.of(offset2, words2);
+            } else if (other.isDefinite() || other instanceof Intervals) {
+                return other.intersect(this);
+            } else if (other.isBounded()) {
+                return restrict(other.getLowerBound(), other.getUpperBound());
+            } else {
+                return this;
+            }
+        }
 
-        void maybeAddToAgenda(Solver solver, int varIndex, Domain dom);
+        @Override
+        boolean isSubsetOf(Domain other) {
+            if (size == 0) return true;
+            if (other instanceof Bits) {
+                final Bits bits = (Bits) other;
+                for (int j = 0; j < words.length; j++) {
+                    if ((words[j] & ~bits.wordAt(offset + 64 * j)) != 0) return false;
+                }
+                return true;
+            } else if (other.isDefinite() || other instanceof Intervals) {
+                return get().forAll(other::accepts);
+            } else if (other.isBounded()) {
+                return other.getLowerBound() <= min && max <= other.getUpperBound();
+            } else {
+                return true;
+            }
+        }
 
-        /**
-         * Tries to propagate the constraint.
-         *
-         * @param solver Solver instance
-         * @return false if the problem is unsatisfiable, true otherwise
-         */
-        boolean propagate(Solver solver);
-    }
+        @Override
+        Domain diff(SortedSet<Integer> values) {
+            long[] words2 = null;
+            for (final int x : values) {
+                if (!accepts(x)) continue;
+                if (words2 == null) words2 = words.clone();
+                words2[(x - offset) >>> 6] &= ~(1L << (x - offset));
+            }
+            return words2 == null ? this : Bits.of(offset, words2);
+        }
 
+        @Override
+        Tuple2<Domain, Domain> bisect() {
+            if (size < 2) throw new IllegalStateException();
+            // The first value of the upper half, such that the lower half has size / 2 elements
+            final int midpoint = nth(size / 2);
+            return Tuple.of(restrict(min, midpoint - 1), restrict(midpoint, max));
+        }
 
-    static boolean isEmpty(Domain dom) {
-        return dom.isEmpty();
-    }
+        @Override
+        int nth(int k) {
+            // Skip whole words, then clear the lower bits of the word with the value
+            int j = 0;
+            while (Long.bitCount(words[j]) <= k) k -= Long.bitCount(words[j++]);
+            long word = words[j];
+            for (; k > 0; k--) word &= word - 1;
+            return offset + 64 * j + Long.numberOfTrailingZeros(word);
+        }
 
-    static boolean hasSolution(Domain dom) {
-        return dom.hasSolution();
-    }
+        @Override
+        Cons symbolicRepr(Var v) {
+            return Cons.make(Cons.fromIterable(get()), "set", v);
+        }
 
-    static int solution(Domain dom) {
-        return dom.solution();
-    }
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Bits)) return false;
+            final Bits bits = (Bits) o;
+            if (size != bits.size || min != bits.min || max != bits.max) return false;
+            for (int j = 0; j < words.length; j++) {
+                if (words[j] != bits.wordAt(offset + 64 * j)) return false;
+            }
+            return true;
+        }
 
-    static boolean isDefinite(Domain dom) {
-        return dom.isDefinite();
+        @Override
+        public int hashCode() {
+            return Objects.hash(min, max, size);
+        }
     }
 
     /**
-     * Finite constraint solver.
+     * A domain consisting of two or more disjoint intervals.
+     *
+     * <p>Intervals are sorted, and separated by at least one missing value.  The domain is not definite, so
+     * propagators treat it through its bounds, while intersection and membership keep track of the holes.</p>
      */
-    static class Solver {
+    static class Intervals extends Domain {
+        final int[] lbs, ubs;
+        final int size;
 
-        static <U extends Comparable<U>> SortedSet<U> emptySet() {
-            return TreeSet.empty();
-        }
-
-        static <U extends Comparable<U>, V> SortedMap<U, V> emptyMap() {
-            return TreeMap.empty();
+        private Intervals(int[] lbs, int[] ubs) {
+            this.lbs = lbs;
+            this.ubs = ubs;
+            long size = 0;
+            for (int i = 0; i < lbs.length; i++) size += (long) ubs[i] - lbs[i] + 1;
+            this.size = (int) Math.min(size, Integer.MAX_VALUE);
         }
 
         /**
-         * The original substitution under which this solver operates.
+         * Accumulates intervals in increasing order, merging the overlapping and adjacent ones.
          */
-        final Subst subst;
+        static class Builder {
+            int[] lbs = new int[4], ubs = new int[4];
+            int n = 0;
+
+            Builder add(int lb, int ub) {
+                if (ub < lb) return this;
+                if (n > 0 && (long) lb <= (long) ubs[n - 1] + 1) {
+                    ubs[n - 1] = Math.max(ubs[n - 1], ub);
+                    return this;
+                }
+                if (n == lbs.length) {
+                    lbs = Arrays.copyOf(lbs, 2 * n);
+                    ubs = Arrays.copyOf(ubs, 2 * n);
+                }
+                lbs[n] = lb;
+                ubs[n] = ub;
+                n++;
+                return this;
+            }
 
-        // ---------- Variable Constraints ----------
-        /**
-         * Mapping from variable indices to lists of constraints that subscribe to these variables.
-         */
-        Map<Integer, List<FdConstraint>> varConstraints = emptyMap();
+            Domain build() {
+                if (n == 0) return Domain.of(1, 0);
+                if (n == 1) return Domain.of(lbs[0], ubs[0]);
+                return new Intervals(Arrays.copyOf(lbs, n), Arrays.copyOf(ubs, n));
+            }
+        }
 
         /**
-         * Returns the list of constraints that subscribe to the variable with the given index.
+         * Makes a domain from pairs of interval bounds, in any order.
          *
-         * @param varIndex The variable index
-         * @return The list of constraints subscribing to the changes in the given variable's domain
+         * @param bounds lower and upper bounds, alternating
+         * @return the union of the intervals
          */
-        List<FdConstraint> getConstraints(int varIndex) {
-            final Option<List<FdConstraint>> optConstraints = varConstraints.get(varIndex);
-            if (!optConstraints.isEmpty()) return optConstraints.get();
-            final List<FdConstraint> result = getAttribute(varIndex, subst, ARI_DOMAIN)
-                    .map(a -> ((FdAttribute) a).constraints)
-                    .getOrElse(List.empty());
-            varConstraints = varConstraints.put(varIndex, result);
-            return result;
+        static Domain of(int... bounds) {
+            if (bounds.length % 2 != 0) throw new IllegalArgumentException("odd number of interval bounds");
+            final Integer[] order = new Integer[bounds.length / 2];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingInt(i -> bounds[2 * i]));
+            final Builder builder = new Builder();
+            for (final int i : order) builder.add(bounds[2 * i], bounds[2 * i + 1]);
+            return builder.build();
+        }
+
+        static Domain diff(int[] lbs, int[] ubs, SortedSet<Integer> values) {
+            final Builder builder = new Builder();
+            final io.vavr.collection.Iterator<Integer> iterator = values.iterator();
+            Integer hole = iterator.hasNext() ? iterator.next() : null;
+            for (int i = 0; i < lbs.length; i++) {
+                long lb = lbs[i];
+                while (hole != null && hole <= ubs[i]) {
+                    if (hole >= lb) {
+                        if (hole > lb) builder.add((int) lb, hole - 1);
+                        lb = (long) hole + 1;
+                    }
+                    hole = iterator.hasNext() ? iterator.next() : null;
+                }
+                if (lb <= ubs[i]) builder.add((int) lb, ubs[i]);
+            }
+            return builder.build();
         }
 
         /**
-         * Registers a new constraint with the variables that listen to it.
+         * Finds the first interval whose upper bound is not less than {@code x}.
          *
-         * @param c the new constraint
-         * @return true
+         * @return the interval index, or the number of intervals if there is none
          */
-        boolean subscribe(FdConstraint c) {
-            for (final int varSeq : c.vars().map(v -> walkVar(v, subst).index)) {
-                final List<FdConstraint> cs = getConstraints(varSeq);
-                if (!cs.contains(c)) {
-                    varConstraints = varConstraints.put(varSeq, cs.prepend(c));
-                }
+        int indexOf(int x) {
+            int low = 0, high = ubs.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (ubs[mid] < x) low = mid + 1;
+                else high = mid;
             }
-            return true;
+            return low;
         }
 
         /**
-         * Unregisters the constraint with the variables to which it subscribes.
+         * Checks if all values between {@code lb} and {@code ub} belong to the domain.
+         */
+        boolean includes(int lb, int ub) {
+            final int i = indexOf(lb);
+            return i < lbs.length && lbs[i] <= lb && ub <= ubs[i];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("{");
+            for (int i = 0; i < lbs.length; i++) {
+                if (i > 0) builder.append(", ");
+                builder.append('[').append(lbs[i]).append(", ").append(ubs[i]).append(']');
+            }
+            return builder.append('}').toString();
+        }
+
+        @Override
+        boolean isDefinite() {
+            return false;
+        }
+
+        @Override
+        boolean isBounded() {
+            return true;
+        }
+
+        @Override
+        boolean isEmpty() {
+            return false;
+        }
+
+        @Override
+        boolean hasSolution() {
+            return false;
+        }
+
+        @Override
+        int solution() {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int getLowerBound() {
+            return lbs[0];
+        }
+
+        @Override
+        int getUpperBound() {
+            return ubs[ubs.length - 1];
+        }
+
+        @Override
+        boolean accepts(int x) {
+            final int i = indexOf(x);
+            return i < lbs.length && lbs[i] <= x;
+        }
+
+        @Override
+        SortedSet<Integer> get() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        Domain intersect(Domain other) {
+            if (other.isDefinite()) {
+                return Domain.of(other.get().filter(this::accepts));
+            } else if (other instanceof Intervals) {
+                final Intervals intervals = (Intervals) other;
+                final Builder builder = new Builder();
+                int i = 0, j = 0;
+                while (i < lbs.length && j < intervals.lbs.length) {
+                    builder.add(Math.max(lbs[i], intervals.lbs[j]), Math.min(ubs[i], intervals.ubs[j]));
+                    if (ubs[i] < intervals.ubs[j]) i++;
+                    else j++;
+                }
+                return builder.build();
+            } else if (other.isBounded()) {
+                final int lb = other.getLowerBound(), ub = other.getUpperBound();
+                if (lb <= getLowerBound() && getUpperBound() <= ub) return this;
+                final Builder builder = new Builder();
+                for (int i = indexOf(lb); i < lbs.length && lbs[i] <= ub; i++) {
+                    builder.add(Math.max(lbs[i], lb), Math.min(ubs[i], ub));
+                }
+                return builder.build();
+            } else {
+                return this;
+            }
+        }
+
+        @Override
+        boolean isSubsetOf(Domain other) {
+            if (other instanceof Intervals) {
+                final Intervals intervals = (Intervals) other;
+                for (int i = 0; i < lbs.length; i++) {
+                    if (!intervals.includes(lbs[i], ubs[i])) return false;
+                }
+                return true;
+            } else if (other.isDefinite()) {
+                if (other.size() < size) return false;
+                for (int i = 0; i < lbs.length; i++) {
+                    for (int x = lbs[i]; x <= ubs[i]; x++) {
+                        if (!other.accepts(x)) return false;
+                    }
+                }
+                return true;
+            } else if (other.isBounded()) {
+                return other.getLowerBound() <= getLowerBound() && getUpperBound() <= other.getUpperBound();
+            } else {
+                return true;
+            }
+        }
+
+        @Override
+        Domain diff(SortedSet<Integer> values) {
+            return diff(lbs, ubs, values);
+        }
+
+        @Override
+        Tuple2<Domain, Domain> bisect() {
+            // Find the first value of the upper half, such that the lower half has half the elements.  An interval
+            // may have more than 2^31 of them, so this is counted in longs
+            long remaining = 0;
+            for (int i = 0; i < lbs.length; i++) remaining += (long) ubs[i] - lbs[i] + 1;
+            remaining /= 2;
+            int i = 0;
+            while ((long) ubs[i] - lbs[i] + 1 <= remaining) remaining -= (long) ubs[i] - lbs[i++] + 1;
+            final int midpoint = (int) (lbs[i] + remaining);
+            return Tuple.of(intersect(Domain.of(getLowerBound(), midpoint - 1)),
+                    intersect(Domain.of(midpoint, getUpperBound())));
+        }
+
+        @Override
+        int nth(int k) {
+            int i = 0;
+            long remaining = k;
+            while ((long) ubs[i] - lbs[i] + 1 <= remaining) remaining -= (long) ubs[i] - lbs[i++] + 1;
+            return (int) (lbs[i] + remaining);
+        }
+
+        @Override
+        Cons symbolicRepr(Var v) {
+            Object ranges = Cons.NIL;
+            for (int i = lbs.length - 1; i >= 0; i--) ranges = new Cons(Cons.list(lbs[i], ubs[i]), ranges);
+            return Cons.make(ranges, "ranges", v);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Intervals)) return false;
+            final Intervals intervals = (Intervals) o;
+            return Arrays.equals(lbs, intervals.lbs) && Arrays.equals(ubs, intervals.ubs);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(lbs) + Arrays.hashCode(ubs);
+        }
+    }
+
+    static class DomGoal extends Goal {
+        final Var v0;
+        final Domain domain;
+
+        DomGoal(Var v, Domain domain) {
+            this.v0 = v;
+            this.domain = domain;
+        }
+
+        @Override
+        public Series<Subst> apply(Subst subst) {
+            // Fail immediately if the constraint is empty
+            if (domain.isEmpty()) return Series.empty();
+
+            final Object o = walk(v0, subst);
+            if (o instanceof Integer) {
+                return domain.accepts((Integer) o) ? Series.singleton(subst) : Series.empty();
+            } else if (!(o instanceof Var)) {
+                return Series.empty();
+            }
+
+            final Domain newConstraint;
+            final Var v = (Var) o;
+            final Option<Attribute> optOldDomain = getAttribute(v, subst, DOM_DOMAIN);
+            final Subst subst1;
+            if (optOldDomain.isEmpty()) {
+                newConstraint = domain;
+                subst1 = subst;
+            } else {
+                final Option<Tuple2<Option<Attribute>, Subst>> combination =
+                        optOldDomain.get().combine(v, new DomainAttribute(v, domain), subst);
+                if (combination.isEmpty()) return Series.empty();
+                newConstraint = ((DomainAttribute) combination.get()._1.get()).domain;
+                subst1 = combination.get()._2;
+            }
+
+            if (newConstraint.isEmpty()) {
+                return Series.empty();
+            }
+
+            return Series.of(Solver.addDomain(new DomainAttribute(v, newConstraint), subst1));
+        }
+    }
+
+    public static Goal dom(Var v, Seq<Integer> elements) {
+        return new DomGoal(v, new Subset(TreeSet.ofAll(elements)));
+    }
+
+    public static Goal domAll(Seq<Integer> elements, Var... vars) {
+        return Goal.seq(List.ofAll(Arrays.stream(vars))
+                .map(v -> new DomGoal(v, new Subset(TreeSet.ofAll(elements)))));
+    }
+
+    public static Goal in(Var v, int... elements) {
+        return dom(v, List.ofAll(elements));
+    }
+
+    public static Goal range(Var v, int lb, int ub) {
+        if (Bits.isCompact(lb, ub, ub - lb + 1)) return new DomGoal(v, Bits.range(lb, ub));
+        return new DomGoal(v, Intervals.of(lb, ub));
+    }
+
+    /**
+     * Constrains a variable to a union of intervals.
+     *
+     * @param v      the variable
+     * @param bounds lower and upper interval bounds, alternating
+     * @return the goal
+     */
+    public static Goal ranges(Var v, int... bounds) {
+        return new DomGoal(v, Intervals.of(bounds));
+    }
+
+    // -- Arithmetic constraints --
+
+    public static final AttributeDomain ARI_DOMAIN = AttributeDomain.register("fda:", false);
+
+    static class FdAttribute implements Attribute {
+        final List<FdConstraint> constraints;
+
+        public FdAttribute(List<FdConstraint> constraints) {
+            this.constraints = constraints;
+        }
+
+        @Override
+        public Option<Subst> validate(Var v, Object o, Subst subst) {
+            return Option.of(subst);
+        }
+
+        @Override
+        public List<Constraint> constraints() {
+            return List.narrow(constraints);
+        }
+
+        @Override
+        public Option<Tuple2<Option<Attribute>, Subst>> combine(Var v, Attribute other, Subst subst) {
+            final FdAttribute otherAri = (FdAttribute) other;
+            return Option.of(Tuple.of(
+                    Option.of(new FdAttribute(constraints.appendAll(otherAri.constraints.filter(c -> !constraints.contains(c))))),
+                    subst
+            ));
+        }
+    }
+
+    interface FdConstraint extends Constraint {
+        /**
+         * Gets the variables over which this constraint ranges.
+         *
+         * @return The set of variables.
+         */
+        Set<Var> vars();
+
+        void maybeAddToAgenda(Solver solver, int varIndex, Domain dom);
+
+        /**
+         * Tries to propagate the constraint.
+         *
+         * @param solver Solver instance
+         * @return false if the problem is unsatisfiable, true otherwise
+         */
+        boolean propagate(Solver solver);
+    }
+
+
+    static boolean isEmpty(Domain dom) {
+        return dom.isEmpty();
+    }
+
+    static boolean hasSolution(Domain dom) {
+        return dom.hasSolution();
+    }
+
+    static int solution(Domain dom) {
+        return dom.solution();
+    }
+
+    static boolean isDefinite(Domain dom) {
+        return dom.isDefinite();
+    }
+
+    /**
+     * Propagation agenda: a FIFO bucket of constraints for each weight level.
+     *
+     * <p>Each queued constraint is mapped (by identity) to its current weight.  When a queued constraint is
+     * enqueued again with a smaller weight, it is added to the lighter bucket and its entry in the heavier one
+     * becomes stale; stale entries are skipped on dequeue.  Both operations take constant time.</p>
+     *
+     * @param <C> the type of constraints
+     */
+    static class Agenda<C> {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private ArrayDeque<C>[] buckets = new ArrayDeque[4];
+        private final IdentityHashMap<C, Integer> weights = new IdentityHashMap<>();
+        /**
+         * No bucket below this index is non-empty.
+         */
+        private int lowest = 0;
+
+        boolean isEmpty() {
+            return weights.isEmpty();
+        }
+
+        void clear() {
+            for (final ArrayDeque<C> bucket : buckets) {
+                if (bucket != null) bucket.clear();
+            }
+            weights.clear();
+            lowest = 0;
+        }
+
+        void add(C c, int weight) {
+            final Integer current = weights.get(c);
+            if (current != null && current <= weight) return;
+            weights.put(c, weight);
+            if (weight >= buckets.length) buckets = Arrays.copyOf(buckets, Math.max(weight + 1, 2 * buckets.length));
+            ArrayDeque<C> bucket = buckets[weight];
+            if (bucket == null) buckets[weight] = bucket = new ArrayDeque<>();
+            bucket.addLast(c);
+            if (weight < lowest) lowest = weight;
+        }
+
+        C remove() {
+            while (lowest < buckets.length) {
+                final ArrayDeque<C> bucket = buckets[lowest];
+                if (bucket == null || bucket.isEmpty()) {
+                    lowest++;
+                    continue;
+                }
+                final C c = bucket.removeFirst();
+                final Integer weight = weights.get(c);
+                if (weight == null || weight != lowest) continue; // stale entry
+                weights.remove(c);
+                return c;
+            }
+            throw new NoSuchElementException();
+        }
+    }
+
+    /**
+     * Smallest domain first, then the most constraints.
+     */
+    static final Comparator<Tuple4<Var, Domain, Integer, Integer>> FIRST_FAIL =
+            (t1, t2) -> t1._3.equals(t2._3) ? t2._4 - t1._4 : t1._3 - t2._3;
+
+    /**
+     * The most constraints first, then the smallest domain.
+     */
+    static final Comparator<Tuple4<Var, Domain, Integer, Integer>> MOST_CONSTRAINED =
+            (t1, t2) -> t1._4.equals(t2._4) ? t1._3 - t2._3 : t2._4 - t1._4;
+
+    /**
+     * Finite constraint solver.
+     */
+    static class Solver {
+
+        static <U extends Comparable<U>> SortedSet<U> emptySet() {
+            return TreeSet.empty();
+        }
+
+        static <U extends Comparable<U>, V> SortedMap<U, V> emptyMap() {
+            return TreeMap.empty();
+        }
+
+        /**
+         * The original substitution under which this solver operates.
+         */
+        final Subst subst;
+
+        // ---------- Variable Constraints ----------
+        /**
+         * Mapping from variable indices to lists of constraints that subscribe to these variables.
+         */
+        Map<Integer, List<FdConstraint>> varConstraints = emptyMap();
+
+        /**
+         * Returns the list of constraints that subscribe to the variable with the given index.
+         *
+         * @param varIndex The variable index
+         * @return The list of constraints subscribing to the changes in the given variable's domain
+         */
+        List<FdConstraint> getConstraints(int varIndex) {
+            final List<FdConstraint> current = loadedConstraints(varIndex);
+            if (current != null) return current;
+            final List<FdConstraint> result = getAttribute(varIndex, subst, ARI_DOMAIN)
+                    .map(a -> ((FdAttribute) a).constraints)
+                    .getOrElse(List.empty());
+            putConstraints(varIndex, result);
+            return result;
+        }
+
+        /**
+         * Returns the constraints already loaded for a variable.
+         *
+         * @param varIndex the variable index
+         * @return the list of constraints, or {@code null} if not loaded yet
+         */
+        List<FdConstraint> loadedConstraints(int varIndex) {
+            return varConstraints.get(varIndex).getOrNull();
+        }
+
+        void putConstraints(int varIndex, List<FdConstraint> cs) {
+            varConstraints = varConstraints.put(varIndex, cs);
+        }
+
+        /**
+         * Returns the indices of the variables whose constraints have been loaded.
+         */
+        Iterable<Integer> constraintVars() {
+            return varConstraints.keySet();
+        }
+
+        /**
+         * Registers a new constraint with the variables that listen to it.
+         *
+         * @param c the new constraint
+         * @return true
+         */
+        boolean subscribe(FdConstraint c) {
+            for (final int varSeq : c.vars().map(v -> walkVar(v, subst).index)) {
+                final List<FdConstraint> cs = getConstraints(varSeq);
+                if (!cs.contains(c)) {
+                    putConstraints(varSeq, cs.prepend(c));
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Unregisters the constraint with the variables to which it subscribes.
          *
          * @param c the constraint to unregister
          */
         void unsubscribe(FdConstraint c) {
             for (final int varSeq : c.vars().map(v -> walkVar(v, subst).index)) {
-                varConstraints = varConstraints.put(varSeq, getConstraints(varSeq).remove(c));
+                putConstraints(varSeq, getConstraints(varSeq).remove(c));
             }
         }
 
@@ -674,8 +1369,8 @@ public class Fd {
          * @return the variable domain
          */
         Domain getDomain(int varIndex) {
-            final Option<Domain> optCurrent = varDomains.get(varIndex);
-            if (!optCurrent.isEmpty()) return optCurrent.get();
+            final Domain current = loadedDomain(varIndex);
+            if (current != null) return current;
             final Object value = subst.getSome(varIndex);
             final Domain result;
             if (value instanceof Var) {
@@ -686,17 +1381,46 @@ public class Fd {
                     result = ((DomainAttribute) fromSubst.get()).domain;
                 }
             } else {
-                instantiatedVars = instantiatedVars.add(varIndex);
+                markInstantiated(varIndex);
                 if (value instanceof Integer) {
                     result = Subset.of((Integer) value);
                 } else {
                     result = Domain.any();
                 }
             }
-            varDomains = varDomains.put(varIndex, result);
+            putDomain(varIndex, result);
             return result;
         }
 
+        /**
+         * Returns the domain already loaded for a variable.
+         *
+         * @param varIndex the variable index
+         * @return the domain, or {@code null} if not loaded yet
+         */
+        Domain loadedDomain(int varIndex) {
+            return varDomains.get(varIndex).getOrNull();
+        }
+
+        void putDomain(int varIndex, Domain dom) {
+            varDomains = varDomains.put(varIndex, dom);
+        }
+
+        /**
+         * Returns the indices of the variables whose domains have been loaded.
+         */
+        Iterable<Integer> domainVars() {
+            return varDomains.keySet();
+        }
+
+        void markInstantiated(int varIndex) {
+            instantiatedVars = instantiatedVars.add(varIndex);
+        }
+
+        boolean isInstantiated(int varIndex) {
+            return instantiatedVars.contains(varIndex);
+        }
+
 
         boolean reduceDomain(int varIndex, int solution) {
             return reduceDomain(varIndex, TreeSet.of(solution));
@@ -711,23 +1435,23 @@ public class Fd {
             final Domain dom1 = dom0.intersect(dom);
             if (dom1.isEmpty()) return false;
             if (dom0.isSubsetOf(dom1)) return true;
-            varDomains = varDomains.put(varIndex, dom1);
-            excite(varIndex, dom);
+            putDomain(varIndex, dom1);
+            excite(varIndex, dom1);
             return true;
         }
 
-        LinkedList<Tuple2<FdConstraint, Integer>> queue = new LinkedList<>();
+        final Agenda<FdConstraint> agenda = new Agenda<>();
 
         Solver(Subst subst) {
             this.subst = subst;
         }
 
         boolean isAgendaEmpty() {
-            return queue.isEmpty();
+            return agenda.isEmpty();
         }
 
         FdConstraint dequeue() {
-            return queue.remove()._1;
+            return agenda.remove();
         }
 
         /**
@@ -735,34 +1459,15 @@ public class Fd {
          *
          * <p>Constraint with weight (c, w) is added to the agenda in the following way:</p>
          * <ul>
-         *     <li>If (c, w') is already in the agenda with w' &lt; w nothing changes.</li>
+         *     <li>If (c, w') is already in the agenda with w' &le; w nothing changes.</li>
          *     <li>Else, (c, w) is inserted behind any element (c', w') where w' &le; w</li>
          * </ul>
          *
          * @param c      the constraint
-         * @param weight a numerical indicator of the computational weight (smaller is better)
+         * @param weight a non-negative numerical indicator of the computational weight (smaller is better)
          */
         void enqueue(FdConstraint c, int weight) {
-            final ListIterator<Tuple2<FdConstraint, Integer>> iterator = queue.listIterator();
-            while (iterator.hasNext()) {
-                final Tuple2<FdConstraint, Integer> t = iterator.next();
-                if (t._1 == c) {
-                    if (t._2 >= weight) iterator.set(Tuple.of(c, weight));
-                    return;
-                } else if (t._2 > weight) {
-                    iterator.previous();
-                    iterator.add(Tuple.of(c, weight));
-                    do {
-                        final Tuple2<FdConstraint, Integer> u = iterator.next();
-                        if (u._1 == c) {
-                            iterator.remove();
-                            return;
-                        }
-                    } while (iterator.hasNext());
-                    break;
-                }
-            }
-            iterator.add(Tuple.of(c, weight));
+            agenda.add(c, weight);
         }
 
         boolean enqueueSubscribe(FdConstraint c, int weight) {
@@ -795,16 +1500,25 @@ public class Fd {
             return solver.solution();
         }
 
-        Logish.Series<Subst> label(Set<Var> vars) {
+        /**
+         * Lists the labeling candidates: variables with a finite domain that are not solved yet, in the order
+         * of the given variables.
+         *
+         * @param vars the variables to label
+         * @return tuples of variable, domain, domain size and constraint count
+         */
+        List<Tuple4<Var, Domain, Integer, Integer>> candidates(List<Var> vars) {
+            return vars.map(v -> walkVar(v, subst)).map(v -> Tuple.of(v, getDomain(v.index)))
+                    .filter(t -> (t._2.isBounded() || isDefinite(t._2)) && !hasSolution(t._2))
+                    .map(t -> Tuple.of(t._1, t._2, t._2.size(), getConstraints(t._1.index).length()));
+        }
+
+        Logish.Series<Subst> label(List<Var> vars) {
             if (!getToFixpoint()) return Series.empty();
-            final List<Tuple4<Var, Domain, Integer, Integer>> candidates =
-                    vars.map(v -> walkVar(v, subst)).toList().map(v -> Tuple.of(v, getDomain(v.index)))
-                            .filter(t -> (t._2.isBounded() || isDefinite(t._2)) && !hasSolution(t._2))
-                            .map(t -> Tuple.of(t._1, t._2, t._2.size(), getConstraints(t._1.index).length()))
-                            .sorted((t1, t2) -> t1._3.equals(t2._3) ? t2._4 - t1._4 : t1._3 - t2._3);
+            final List<Tuple4<Var, Domain, Integer, Integer>> candidates = candidates(vars);
             if (candidates.exists(t -> t._3 == 0)) return Series.empty();
             if (candidates.isEmpty()) return Series.of(solution());
-            final Tuple4<Var, Domain, Integer, Integer> chosen = candidates.head();
+            final Tuple4<Var, Domain, Integer, Integer> chosen = candidates.minBy(FIRST_FAIL).get();
             final Tuple2<Domain, Domain> bisected = chosen._2.bisect();
             final Solver branch = duplicate();
             reduceDomain(chosen._1.index, bisected._1);
@@ -826,22 +1540,36 @@ public class Fd {
         // ---------- Inner mechanics ----------
 
         boolean getToFixpoint() {
-            while (!queue.isEmpty()) {
-                final FdConstraint constraint = queue.remove()._1;
+            while (!agenda.isEmpty()) {
+                final FdConstraint constraint = agenda.remove();
                 unsubscribe(constraint);
-                if (!constraint.propagate(this)) return false;
+                if (!constraint.propagate(this)) {
+                    failed(constraint);
+                    return false;
+                }
             }
             return true;
         }
 
+        /**
+         * Called when the propagation of a constraint fails.
+         *
+         * @param c the failed constraint
+         */
+        void failed(FdConstraint c) {
+        }
+
         Option<Subst> solution() {
 
             if (!getToFixpoint()) return Option.none();
 
             Subst result = subst;
 
-            final Map<Integer, Integer> solved =
-                    varDomains.filter(t -> hasSolution(t._2)).mapValues(d -> d.get().head());
+            Map<Integer, Integer> solved = TreeMap.empty();
+            for (final int varSeq : domainVars()) {
+                final Domain d = loadedDomain(varSeq);
+                if (hasSolution(d)) solved = solved.put(varSeq, Fd.solution(d));
+            }
 
             // Remove domain and ari constraint from the solved variables
             for (final int varSeq : solved.keysIterator()) {
@@ -849,32 +1577,342 @@ public class Fd {
             }
 
             // Set domains for unsolved variables
-            for (final int varSeq : varDomains.keysIterator()) {
+            for (final int varSeq : domainVars()) {
                 if (solved.containsKey(varSeq)) continue;
-                final Domain d = varDomains.get(varSeq).get();
+                final Domain d = loadedDomain(varSeq);
                 result = setAttribute(varSeq, result, DOM_DOMAIN, new DomainAttribute(new Var(varSeq), d));
             }
 
             // Set arithmetic constraints for unsolved variables
-            for (final int varSeq : varConstraints.keysIterator()) {
+            for (final int varSeq : constraintVars()) {
                 if (solved.containsKey(varSeq)) continue;
-                final List<FdConstraint> cs = varConstraints.get(varSeq).get();
+                final List<FdConstraint> cs = loadedConstraints(varSeq);
                 if (cs.isEmpty()) {
                     result = removeAttribute(varSeq, result, ARI_DOMAIN);
                 } else {
                     result = setAttribute(varSeq, result, ARI_DOMAIN, new FdAttribute(cs));
                 }
             }
-
-            // Instantiate solved variables by unifying them recursively
-            for (final Tuple2<Integer, Integer> solution : solved) {
-                if (instantiatedVars.contains(solution._1)) continue; // variable instantiated earlier
-                final Option<Subst> step = unify(new Var(solution._1), solution._2, result);
-                if (step.isEmpty()) return Option.none();
-                result = step.get();
+
+            // Instantiate solved variables by unifying them recursively
+            for (final Tuple2<Integer, Integer> solution : solved) {
+                if (isInstantiated(solution._1)) continue; // variable instantiated earlier
+                final Option<Subst> step = unify(new Var(solution._1), solution._2, result);
+                if (step.isEmpty()) return Option.none();
+                result = step.get();
+            }
+
+            return Option.of(result);
+        }
+    }
+
+    /**
+     * Finite constraint solver with mutable state, used for labeling.
+     *
+     * <p>Domains and constraint lists are kept in arrays indexed by variable index.  Every change to an
+     * already loaded entry is recorded on a trail, so that search can backtrack by undoing the changes
+     * instead of copying the state.  Loading an entry from the substitution is not recorded, because the
+     * loaded value never changes.</p>
+     */
+    static class TrailSolver extends Solver {
+        Domain[] domains = new Domain[16];
+        Object[] constraints = new Object[16];
+        final java.util.BitSet instantiated = new java.util.BitSet();
+        /**
+         * Indices of variables with loaded domains and constraints, in the order of loading.
+         */
+        final java.util.List<Integer> domainVars = new ArrayList<>(), constraintVars = new ArrayList<>();
+        /**
+         * The trail: variable indices (bitwise complemented for constraint lists) and the previous entries.
+         */
+        int[] trailKeys = new int[64];
+        Object[] trailValues = new Object[64];
+        int trailSize = 0;
+
+        final LabelingOptions options;
+        /**
+         * Failure counts by variable index, for dom/wdeg.  Kept across backtracking.
+         */
+        final java.util.Map<Integer, Integer> failures = new java.util.HashMap<>();
+        final Random random;
+
+        TrailSolver(Subst subst) {
+            this(subst, LabelingOptions.defaults());
+        }
+
+        TrailSolver(Subst subst, LabelingOptions options) {
+            super(subst);
+            this.options = options;
+            this.random = new Random(options.seed);
+        }
+
+        private void record(int key, Object value) {
+            if (trailSize == trailKeys.length) {
+                trailKeys = Arrays.copyOf(trailKeys, 2 * trailSize);
+                trailValues = Arrays.copyOf(trailValues, 2 * trailSize);
+            }
+            trailKeys[trailSize] = key;
+            trailValues[trailSize++] = value;
+        }
+
+        /**
+         * Undoes the changes made after the trail had the given size, and clears the agenda.
+         *
+         * @param mark the trail size to return to
+         */
+        void undo(int mark) {
+            while (trailSize > mark) {
+                final int key = trailKeys[--trailSize];
+                final Object value = trailValues[trailSize];
+                trailValues[trailSize] = null;
+                if (key >= 0) domains[key] = (Domain) value;
+                else constraints[~key] = value;
+            }
+            agenda.clear();
+        }
+
+        @Override
+        Domain loadedDomain(int varIndex) {
+            return varIndex < domains.length ? domains[varIndex] : null;
+        }
+
+        @Override
+        void putDomain(int varIndex, Domain dom) {
+            if (varIndex >= domains.length) domains = Arrays.copyOf(domains, Math.max(varIndex + 1, 2 * domains.length));
+            final Domain old = domains[varIndex];
+            if (old == null) domainVars.add(varIndex);
+            else record(varIndex, old);
+            domains[varIndex] = dom;
+        }
+
+        @Override
+        Iterable<Integer> domainVars() {
+            return domainVars;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        List<FdConstraint> loadedConstraints(int varIndex) {
+            return varIndex < constraints.length ? (List<FdConstraint>) constraints[varIndex] : null;
+        }
+
+        @Override
+        void putConstraints(int varIndex, List<FdConstraint> cs) {
+            if (varIndex >= constraints.length) {
+                constraints = Arrays.copyOf(constraints, Math.max(varIndex + 1, 2 * constraints.length));
+            }
+            final Object old = constraints[varIndex];
+            if (old == null) constraintVars.add(varIndex);
+            else record(~varIndex, old);
+            constraints[varIndex] = cs;
+        }
+
+        @Override
+        Iterable<Integer> constraintVars() {
+            return constraintVars;
+        }
+
+        @Override
+        void markInstantiated(int varIndex) {
+            instantiated.set(varIndex);
+        }
+
+        @Override
+        boolean isInstantiated(int varIndex) {
+            return instantiated.get(varIndex);
+        }
+
+        @Override
+        Solver duplicate() {
+            final TrailSolver result = new TrailSolver(subst, options);
+            result.domains = domains.clone();
+            result.constraints = constraints.clone();
+            result.instantiated.or(instantiated);
+            result.domainVars.addAll(domainVars);
+            result.constraintVars.addAll(constraintVars);
+            result.failures.putAll(failures);
+            return result;
+        }
+
+        /**
+         * A choice point: the trail size before taking the left branch, and the right branch still to explore.
+         */
+        static class ChoicePoint {
+            final int mark;
+            final int varIndex;
+            final Domain right;
+
+            ChoicePoint(int mark, int varIndex, Domain right) {
+                this.mark = mark;
+                this.varIndex = varIndex;
+                this.right = right;
+            }
+        }
+
+        /**
+         * Labels the variables depth-first, backtracking over the trail.
+         *
+         * <p>Solutions are produced lazily; each suspension in the resulting series is evaluated at most once,
+         * since every step resumes the search from the state left by the previous one.</p>
+         *
+         * @param vars the variables to label
+         * @return the series of solutions
+         */
+        @Override
+        Series<Subst> label(List<Var> vars) {
+            return label(vars, 0);
+        }
+
+        /**
+         * Labels the variables from a node at the given depth of the search tree.
+         *
+         * <p>Above the fork depth set in the options, the right branch of each choice is not kept as a choice
+         * point, but handed to a copy of the solver that searches it as a separate task in the fork/join pool.
+         * Every fork is above all the choice points of this solver, so backtracking never returns to one.</p>
+         *
+         * @param vars  the variables to label
+         * @param depth the depth of the node
+         * @return the series of solutions
+         */
+        Series<Subst> label(List<Var> vars, int depth) {
+            final ArrayDeque<ChoicePoint> choicePoints = new ArrayDeque<>();
+            final Cancellation cancellation = Cancellation.current();
+            final boolean[] descendNext = {true};
+            final int[] forks = {0};
+            return memoized(new Supplier<Series<Subst>>() {
+                @Override
+                public Series<Subst> get() {
+                    boolean descend = descendNext[0];
+                    descendNext[0] = false;
+                    while (true) {
+                        if (cancellation.isCancelled()) return Series.empty();
+                        if (!descend) {
+                            // Backtrack to the most recent choice point and take its right branch
+                            final ChoicePoint cp = choicePoints.poll();
+                            if (cp == null) return Series.empty();
+                            undo(cp.mark);
+                            if (!reduceDomain(cp.varIndex, cp.right)) continue;
+                        }
+                        descend = false;
+                        if (!getToFixpoint()) continue;
+                        final List<Tuple4<Var, Domain, Integer, Integer>> candidates = candidates(vars);
+                        if (candidates.exists(t -> t._3 == 0)) continue;
+                        if (candidates.isEmpty()) {
+                            final Option<Subst> solution = solution();
+                            if (solution.isEmpty()) continue;
+                            return Series.cons(solution.get(), continuation(this));
+                        }
+                        final Tuple4<Var, Domain, Integer, Integer> chosen = select(candidates);
+                        final Tuple2<Domain, Domain> branches = split(chosen._2);
+                        final int nodeDepth = depth + forks[0] + choicePoints.size();
+                        if (nodeDepth < options.forkDepth) {
+                            forks[0]++;
+                            final TrailSolver branch = (TrailSolver) duplicate();
+                            final CompletableFuture<Series<Subst>> right = CompletableFuture.supplyAsync(
+                                    cancellation.bind(() -> branch.reduceDomain(chosen._1.index, branches._2) ?
+                                            forced(branch.label(vars, nodeDepth + 1)) : Series.empty()),
+                                    options.pool);
+                            descendNext[0] = reduceDomain(chosen._1.index, branches._1);
+                            return Series.appendInf(memoized(this), Series.future(right));
+                        }
+                        choicePoints.push(new ChoicePoint(trailSize, chosen._1.index, branches._2));
+                        descend = reduceDomain(chosen._1.index, branches._1);
+                    }
+                }
+            });
+        }
+
+        /**
+         * The rest of the search after a solution.  When labeling in parallel, the search for the next solution
+         * starts right away as a task in the pool.
+         */
+        Series<Subst> continuation(Supplier<Series<Subst>> step) {
+            final Series<Subst> next = memoized(step);
+            if (options.forkDepth == 0) return next;
+            return Series.future(CompletableFuture.supplyAsync(Cancellation.current().bind(() -> forced(next)),
+                    options.pool));
+        }
+
+        /**
+         * Forces the suspensions at the front of a series, stopping at a future.
+         */
+        static Series<Subst> forced(Series<Subst> series) {
+            while (series.isSuspension()) series = series.force();
+            return series;
+        }
+
+        @Override
+        void failed(FdConstraint c) {
+            for (final Var v : c.vars()) failures.merge(walkVar(v, subst).index, 1, Integer::sum);
+        }
+
+        /**
+         * Chooses the variable to branch on.
+         *
+         * @param candidates the candidates in the order of the labeled variables
+         * @return the chosen candidate
+         */
+        Tuple4<Var, Domain, Integer, Integer> select(List<Tuple4<Var, Domain, Integer, Integer>> candidates) {
+            switch (options.variables) {
+                case INPUT_ORDER:
+                    return candidates.head();
+                case MOST_CONSTRAINED:
+                    return candidates.minBy(MOST_CONSTRAINED).get();
+                case DOM_WDEG:
+                    // Least domain size per weighted degree; constraints weigh one plus their failures
+                    return candidates.minBy(Comparator.<Tuple4<Var, Domain, Integer, Integer>>comparingDouble(t ->
+                            (double) t._3 / (t._4 + failures.getOrDefault(t._1.index, 0)))
+                            .thenComparing(FIRST_FAIL)).get();
+                case MAX_REGRET:
+                    return candidates.minBy(Comparator.<Tuple4<Var, Domain, Integer, Integer>>comparingLong(t ->
+                            (long) t._2.nth(0) - t._2.nth(1)).thenComparing(FIRST_FAIL)).get();
+                default:
+                    return candidates.minBy(FIRST_FAIL).get();
+            }
+        }
+
+        /**
+         * Splits the domain of the chosen variable into the left and the right branch.
+         *
+         * @param dom the domain, with at least two values
+         * @return the domains to intersect with in each branch
+         */
+        Tuple2<Domain, Domain> split(Domain dom) {
+            if (options.values == ValueChoice.MEDIAN && options.branching == Branching.BISECT) return dom.bisect();
+            final int value;
+            switch (options.values) {
+                case MIN:
+                    value = dom.getLowerBound();
+                    break;
+                case MAX:
+                    value = dom.getUpperBound();
+                    break;
+                case RANDOM:
+                    value = dom.nth(random.nextInt(dom.size()));
+                    break;
+                default:
+                    value = dom.nth((dom.size() - 1) / 2);
+            }
+            if (options.branching == Branching.ENUMERATE) {
+                return Tuple.of(Subset.of(value), dom.diff(TreeSet.of(value)));
+            } else if (options.values == ValueChoice.MAX) {
+                return Tuple.of(narrowing(value, Integer.MAX_VALUE), narrowing(Integer.MIN_VALUE, value - 1L));
+            } else {
+                return Tuple.of(narrowing(Integer.MIN_VALUE, value), narrowing(value + 1L, Integer.MAX_VALUE));
             }
+        }
 
-            return Option.of(result);
+        /**
+         * Wraps a search step into a suspension that is evaluated at most once.
+         */
+        static Series<Subst> memoized(Supplier<Series<Subst>> step) {
+            final AtomicReference<Series<Subst>> result = new AtomicReference<>();
+            return Series.suspension(() -> {
+                synchronized (result) {
+                    if (result.get() == null) result.set(step.get());
+                    return result.get();
+                }
+            });
         }
     }
 
@@ -1482,13 +2520,47 @@ public class Fd {
     }
 
 
+    /**
+     * Strength of propagation for the global constraints that offer a choice.
+     */
+    public enum Consistency {
+        /**
+         * Removes the values of the solved variables from the other domains (forward checking).
+         */
+        VALUE,
+        /**
+         * Narrows the bounds of the domains to the values that take part in some solution.
+         */
+        BOUNDS,
+        /**
+         * Removes every value that does not take part in a solution.
+         */
+        DOMAIN
+    }
+
+    /**
+     * The variables take pairwise distinct values, none of which is among the excluded ones.
+     *
+     * <p>With {@link Consistency#VALUE} the constraint wakes up only when a domain becomes definite, and removes the
+     * values of the solved variables.  With {@link Consistency#BOUNDS} it also narrows the bounds using Hall
+     * intervals (L&oacute;pez-Ortiz et al.), and with {@link Consistency#DOMAIN} it removes the values outside any
+     * maximum matching between variables and values (R&eacute;gin).  The latter two wake up on every domain change.
+     * Variables without bounds can always take a value of their own, and are left out of the bounds and matching
+     * reasoning; when some of the remaining domains are not definite, domain consistency falls back to bounds.</p>
+     */
     static class AllDifferent implements FdConstraint {
         final Set<Var> xs;
         final SortedSet<Integer> ys;
+        final Consistency consistency;
 
         public AllDifferent(Set<Var> xs, SortedSet<Integer> ys) {
+            this(xs, ys, Consistency.VALUE);
+        }
+
+        public AllDifferent(Set<Var> xs, SortedSet<Integer> ys, Consistency consistency) {
             this.xs = xs;
             this.ys = ys;
+            this.consistency = consistency;
         }
 
         @Override
@@ -1506,10 +2578,14 @@ public class Fd {
             return symbolicRepr().toString();
         }
 
+        int weight() {
+            return consistency.ordinal();
+        }
+
         @Override
         public void maybeAddToAgenda(Solver solver, int varIndex, Domain dom) {
-            if (isDefinite(dom)) {
-                solver.enqueue(this, 0);
+            if (consistency != Consistency.VALUE || isDefinite(dom)) {
+                solver.enqueue(this, weight());
             }
         }
 
@@ -1531,16 +2607,332 @@ public class Fd {
 
             for (final Tuple2<Var, Domain> t : walkedVars) {
                 if (hasSolution(t._2)) continue;
+                // Two of the variables have been unified
+                if (xs2.contains(t._1)) return false;
                 xs2 = xs2.add(t._1);
-                if (isDefinite(t._2)) {
-                    if (!solver.reduceDomain(t._1.index, t._2.get().diff(ys2))) return false;
+                if (isDefinite(t._2) || t._2.isBounded()) {
+                    if (!solver.reduceDomain(t._1.index, t._2.diff(ys2))) return false;
+                }
+            }
+
+            if (xs2.isEmpty()) return true;
+
+            final FdConstraint next = ys2 == ys && xs2.size() == xs.size() ? this :
+                    new AllDifferent(xs2, ys2, consistency);
+            if (consistency == Consistency.VALUE) return solver.subscribe(next);
+
+            final java.util.List<Var> bounded = new ArrayList<>();
+            boolean allDefinite = true;
+            for (final Var x : xs2) {
+                final Domain dom = solver.getDomain(x.index);
+                if (!dom.isBounded() && !isDefinite(dom)) continue;
+                bounded.add(x);
+                allDefinite &= isDefinite(dom);
+            }
+            final Domain[] before = new Domain[bounded.size()];
+            for (int i = 0; i < before.length; i++) before[i] = solver.getDomain(bounded.get(i).index);
+
+            if (consistency == Consistency.DOMAIN && allDefinite) {
+                if (!filterDomains(solver, bounded)) return false;
+            } else {
+                if (!filterBounds(solver, bounded)) return false;
+            }
+
+            // Solved variables must be taken out of the others, so another run is due after a change
+            for (int i = 0; i < before.length; i++) {
+                if (solver.getDomain(bounded.get(i).index) != before[i]) {
+                    return solver.enqueueSubscribe(next, weight());
+                }
+            }
+            return solver.subscribe(next);
+        }
+
+        /**
+         * Narrows the bounds of the variables so that each bound takes part in some assignment of distinct values
+         * within the bounds.  Intervals of values that as many variables as there are values need entirely (Hall
+         * intervals) are taken out of the bounds of the other variables.
+         *
+         * @param solver the solver
+         * @param vars   distinct variables with bounded domains
+         * @return {@code false} if there are more variables than values within some interval
+         */
+        static boolean filterBounds(Solver solver, java.util.List<Var> vars) {
+            final int n = vars.size();
+            if (n == 0) return true;
+            final long[] mins = new long[n], maxs = new long[n];
+            for (int i = 0; i < n; i++) {
+                final Domain dom = solver.getDomain(vars.get(i).index);
+                mins[i] = dom.getLowerBound();
+                maxs[i] = dom.getUpperBound();
+            }
+            final Integer[] minOrder = new Integer[n], maxOrder = new Integer[n];
+            for (int i = 0; i < n; i++) minOrder[i] = maxOrder[i] = i;
+            Arrays.sort(minOrder, Comparator.comparingLong(i -> mins[i]));
+            Arrays.sort(maxOrder, Comparator.comparingLong(i -> maxs[i]));
+
+            // Merge the lower bounds and the upper bounds plus one into ranked, distinct interval ends
+            final int[] minRank = new int[n], maxRank = new int[n];
+            final long[] bounds = new long[2 * n + 2];
+            int nb = 0;
+            long min = mins[minOrder[0]], max = maxs[maxOrder[0]] + 1, last = min - 2;
+            bounds[0] = last;
+            for (int i = 0, j = 0; ; ) {
+                if (i < n && min <= max) {
+                    if (min != last) bounds[++nb] = last = min;
+                    minRank[minOrder[i]] = nb;
+                    if (++i < n) min = mins[minOrder[i]];
+                } else {
+                    if (max != last) bounds[++nb] = last = max;
+                    maxRank[maxOrder[j]] = nb;
+                    if (++j == n) break;
+                    max = maxs[maxOrder[j]] + 1;
+                }
+            }
+            bounds[nb + 1] = bounds[nb] + 2;
+
+            final long[] newMins = mins.clone(), newMaxs = maxs.clone();
+            final int[] t = new int[2 * n + 2], h = new int[2 * n + 2];
+            final long[] d = new long[2 * n + 2];
+
+            // Lower bounds, visiting the variables by increasing upper bound
+            for (int k = 1; k <= nb + 1; k++) {
+                t[k] = h[k] = k - 1;
+                d[k] = bounds[k] - bounds[k - 1];
+            }
+            for (int k = 0; k < n; k++) {
+                final int v = maxOrder[k], x = minRank[v], y = maxRank[v];
+                int z = pathMax(t, x + 1);
+                final int j = t[z];
+                if (--d[z] == 0) {
+                    t[z] = z + 1;
+                    z = pathMax(t, t[z]);
+                    t[z] = j;
+                }
+                pathSet(t, x + 1, z, z);
+                if (d[z] < bounds[z] - bounds[y]) return false;
+                if (h[x] > x) {
+                    final int w = pathMax(h, h[x]);
+                    newMins[v] = bounds[w];
+                    pathSet(h, x, w, w);
+                }
+                if (d[z] == bounds[z] - bounds[y]) {
+                    pathSet(h, h[y], j - 1, y);
+                    h[y] = j - 1;
+                }
+            }
+
+            // Upper bounds, visiting the variables by decreasing lower bound
+            for (int k = 0; k <= nb; k++) {
+                t[k] = h[k] = k + 1;
+                d[k] = bounds[k + 1] - bounds[k];
+            }
+            for (int k = n - 1; k >= 0; k--) {
+                final int v = minOrder[k], x = maxRank[v], y = minRank[v];
+                int z = pathMin(t, x - 1);
+                final int j = t[z];
+                if (--d[z] == 0) {
+                    t[z] = z - 1;
+                    z = pathMin(t, t[z]);
+                    t[z] = j;
+                }
+                pathSet(t, x - 1, z, z);
+                if (d[z] < bounds[y] - bounds[z]) return false;
+                if (h[x] < x) {
+                    final int w = pathMin(h, h[x]);
+                    newMaxs[v] = bounds[w] - 1;
+                    pathSet(h, x, w, w);
+                }
+                if (d[z] == bounds[y] - bounds[z]) {
+                    pathSet(h, h[y], j + 1, y);
+                    h[y] = j + 1;
+                }
+            }
+
+            for (int i = 0; i < n; i++) {
+                if (newMins[i] == mins[i] && newMaxs[i] == maxs[i]) continue;
+                if (!solver.reduceDomain(vars.get(i).index, narrowing(newMins[i], newMaxs[i]))) return false;
+            }
+            return true;
+        }
+
+        static int pathMax(int[] t, int i) {
+            while (t[i] > i) i = t[i];
+            return i;
+        }
+
+        static int pathMin(int[] t, int i) {
+            while (t[i] < i) i = t[i];
+            return i;
+        }
+
+        static void pathSet(int[] t, int start, int end, int to) {
+            int k, l = start;
+            while ((k = l) != end) {
+                l = t[k];
+                t[k] = to;
+            }
+        }
+
+        /**
+         * Removes the values that no assignment of distinct values to the variables can use.  A maximum matching
+         * between the variables and the values is found first; a value stays in a domain if it is matched with the
+         * variable, or if the two lie on an alternating cycle or on an alternating path from a free value.
+         *
+         * @param solver the solver
+         * @param vars   distinct variables with definite domains
+         * @return {@code false} if there is no matching covering all the variables
+         */
+        static boolean filterDomains(Solver solver, java.util.List<Var> vars) {
+            final int n = vars.size();
+            if (n == 0) return true;
+
+            // Number the values, and list the values of each variable
+            final java.util.Map<Integer, Integer> valueIndex = new java.util.HashMap<>();
+            final java.util.List<Integer> values = new ArrayList<>();
+            final int[][] adj = new int[n][];
+            for (int i = 0; i < n; i++) {
+                final SortedSet<Integer> dom = solver.getDomain(vars.get(i).index).get();
+                adj[i] = new int[dom.size()];
+                int k = 0;
+                for (final int value : dom) {
+                    Integer u = valueIndex.get(value);
+                    if (u == null) {
+                        u = values.size();
+                        valueIndex.put(value, u);
+                        values.add(value);
+                    }
+                    adj[i][k++] = u;
                 }
             }
+            final int m = values.size();
+            if (m < n) return false;
+
+            // Maximum matching by augmenting paths
+            final int[] varMatch = new int[n], valMatch = new int[m];
+            Arrays.fill(varMatch, -1);
+            Arrays.fill(valMatch, -1);
+            final int[] visited = new int[m];
+            for (int i = 0; i < n; i++) {
+                if (!augment(i, i + 1, adj, varMatch, valMatch, visited)) return false;
+            }
 
-            if (!xs2.isEmpty()) solver.subscribe(new AllDifferent(xs2, ys2));
+            // Residual graph: variables 0..n-1, values n..n+m-1, and a node linking matched values to free ones.
+            // Matched edges go from the variable, the others from the value.
+            final int sink = n + m;
+            final int[] outDegree = new int[n + m + 1];
+            for (int i = 0; i < n; i++) {
+                outDegree[i] = 1;
+                for (final int u : adj[i]) if (varMatch[i] != u) outDegree[n + u]++;
+            }
+            boolean hasFree = false;
+            for (int u = 0; u < m; u++) {
+                if (valMatch[u] >= 0) outDegree[n + u]++;
+                else hasFree = true;
+            }
+            if (hasFree) outDegree[sink] = m - n;
+            final int[][] succ = new int[n + m + 1][];
+            for (int node = 0; node <= sink; node++) succ[node] = new int[outDegree[node]];
+            final int[] filled = new int[n + m + 1];
+            for (int i = 0; i < n; i++) {
+                succ[i][filled[i]++] = n + varMatch[i];
+                for (final int u : adj[i]) if (varMatch[i] != u) succ[n + u][filled[n + u]++] = i;
+            }
+            for (int u = 0; u < m; u++) {
+                if (valMatch[u] >= 0) succ[n + u][filled[n + u]++] = sink;
+                else succ[sink][filled[sink]++] = n + u;
+            }
 
+            final int[] component = components(succ);
+            for (int i = 0; i < n; i++) {
+                java.util.List<Integer> kept = null;
+                for (int k = 0; k < adj[i].length; k++) {
+                    final int u = adj[i][k];
+                    final boolean keep = varMatch[i] == u || component[i] == component[n + u];
+                    if (!keep && kept == null) {
+                        kept = new ArrayList<>();
+                        for (int l = 0; l < k; l++) kept.add(values.get(adj[i][l]));
+                    } else if (keep && kept != null) {
+                        kept.add(values.get(u));
+                    }
+                }
+                if (kept != null && !solver.reduceDomain(vars.get(i).index, TreeSet.ofAll(kept))) return false;
+            }
             return true;
         }
+
+        static boolean augment(int i, int stamp, int[][] adj, int[] varMatch, int[] valMatch, int[] visited) {
+            for (final int u : adj[i]) {
+                if (valMatch[u] < 0) {
+                    varMatch[i] = u;
+                    valMatch[u] = i;
+                    return true;
+                }
+            }
+            for (final int u : adj[i]) {
+                if (visited[u] == stamp) continue;
+                visited[u] = stamp;
+                if (augment(valMatch[u], stamp, adj, varMatch, valMatch, visited)) {
+                    varMatch[i] = u;
+                    valMatch[u] = i;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Strongly connected components of a graph (Tarjan), without recursion.
+         *
+         * @param succ the successors of each node
+         * @return the component number of each node
+         */
+        static int[] components(int[][] succ) {
+            final int size = succ.length;
+            final int[] index = new int[size], low = new int[size], component = new int[size];
+            Arrays.fill(index, -1);
+            final boolean[] onStack = new boolean[size];
+            final int[] stack = new int[size], callNode = new int[size], callEdge = new int[size];
+            int counter = 0, components = 0, top = 0;
+            for (int root = 0; root < size; root++) {
+                if (index[root] >= 0) continue;
+                int depth = 0;
+                callNode[0] = root;
+                callEdge[0] = 0;
+                index[root] = low[root] = counter++;
+                stack[top++] = root;
+                onStack[root] = true;
+                while (depth >= 0) {
+                    final int node = callNode[depth];
+                    if (callEdge[depth] < succ[node].length) {
+                        final int next = succ[node][callEdge[depth]++];
+                        if (index[next] < 0) {
+                            index[next] = low[next] = counter++;
+                            stack[top++] = next;
+                            onStack[next] = true;
+                            callNode[++depth] = next;
+                            callEdge[depth] = 0;
+                        } else if (onStack[next]) {
+                            low[node] = Math.min(low[node], index[next]);
+                        }
+                    } else {
+                        if (low[node] == index[node]) {
+                            int member;
+                            do {
+                                member = stack[--top];
+                                onStack[member] = false;
+                                component[member] = components;
+                            } while (member != node);
+                            components++;
+                        }
+                        if (--depth >= 0) {
+                            final int parent = callNode[depth];
+                            low[parent] = Math.min(low[parent], low[node]);
+                        }
+                    }
+                }
+            }
+            return component;
+        }
     }
 
 //    public static Goal neqO(Var x, Var y) {
@@ -1563,288 +2955,246 @@ public class Fd {
         return new AriGoal(new AllDifferent(HashSet.ofAll(Arrays.stream(vs)), TreeSet.empty()));
     }
 
-    public static Goal allDifferentO(Iterable<Integer> excludedValues, Var... vs) {
-        return new AriGoal(new AllDifferent(HashSet.ofAll(Arrays.stream(vs)), TreeSet.ofAll(excludedValues)));
+    public static Goal allDifferentO(Iterable<Integer> excludedValues, Var... vs) {
+        return new AriGoal(new AllDifferent(HashSet.ofAll(Arrays.stream(vs)), TreeSet.ofAll(excludedValues)));
+    }
+
+    /**
+     * All variables take distinct values, propagated with the given strength.
+     *
+     * @param consistency the strength of propagation
+     * @param vs          the variables
+     * @return the goal
+     */
+    public static Goal allDifferentO(Consistency consistency, Var... vs) {
+        return new AriGoal(new AllDifferent(HashSet.ofAll(Arrays.stream(vs)), TreeSet.empty(), consistency));
+    }
+
+    public static Goal allDifferentO(Consistency consistency, Iterable<Integer> excludedValues, Var... vs) {
+        return new AriGoal(new AllDifferent(HashSet.ofAll(Arrays.stream(vs)), TreeSet.ofAll(excludedValues),
+                consistency));
+    }
+
+    static boolean hasBounds(Domain dom) {
+        return dom.isBounded() || isDefinite(dom);
+    }
+
+    /**
+     * Reduces the domain of a variable to the values not above a bound.
+     */
+    static boolean reduceToAtMost(Solver solver, int varIndex, long ub) {
+        if (ub < Integer.MIN_VALUE) return false;
+        final Domain dom = solver.getDomain(varIndex);
+        if (hasBounds(dom) && dom.getUpperBound() <= ub) return true;
+        return solver.reduceDomain(varIndex, narrowing(Integer.MIN_VALUE, ub));
+    }
+
+    /**
+     * Reduces the domain of a variable to the values not below a bound.
+     */
+    static boolean reduceToAtLeast(Solver solver, int varIndex, long lb) {
+        if (lb > Integer.MAX_VALUE) return false;
+        final Domain dom = solver.getDomain(varIndex);
+        if (hasBounds(dom) && lb <= dom.getLowerBound()) return true;
+        return solver.reduceDomain(varIndex, narrowing(lb, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Upper bound on a variable: x &le; y.  The constraint is settled by the domain reduction, and does not stay
+     * subscribed.
+     */
+    static class LeqVC implements FdConstraint {
+        final Var x;
+        final int y;
+
+        LeqVC(Var x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public Set<Var> vars() {
+            return HashSet.of(x);
+        }
+
+        @Override
+        public Cons symbolicRepr() {
+            return Cons.make(Cons.NIL, "v<=n", x, y);
+        }
+
+        @Override
+        public String toString() {
+            return symbolicRepr().toString();
+        }
+
+        @Override
+        public void maybeAddToAgenda(Solver solver, int varIndex, Domain dom) {
+            solver.enqueue(this, 0);
+        }
+
+        @Override
+        public boolean propagate(Solver solver) {
+            return reduceToAtMost(solver, walkVar(x, solver.subst).index, y);
+        }
+    }
+
+    /**
+     * Lower bound on a variable: x &le; y.  The constraint is settled by the domain reduction, and does not stay
+     * subscribed.
+     */
+    static class LeqCV implements FdConstraint {
+        final int x;
+        final Var y;
+
+        LeqCV(int x, Var y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public Set<Var> vars() {
+            return HashSet.of(y);
+        }
+
+        @Override
+        public Cons symbolicRepr() {
+            return Cons.make(Cons.NIL, "n<=v", x, y);
+        }
+
+        @Override
+        public String toString() {
+            return symbolicRepr().toString();
+        }
+
+        @Override
+        public void maybeAddToAgenda(Solver solver, int varIndex, Domain dom) {
+            solver.enqueue(this, 0);
+        }
+
+        @Override
+        public boolean propagate(Solver solver) {
+            return reduceToAtLeast(solver, walkVar(y, solver.subst).index, x);
+        }
+    }
+
+    /**
+     * Ordering of two variables: x + d &le; y, where d is 0 for x &le; y and 1 for x &lt; y.  Only the bounds are
+     * propagated; the upper bound of x follows y, and the lower bound of y follows x.
+     */
+    static class LeqVV implements FdConstraint {
+        final Var x, y;
+        final int d;
+
+        LeqVV(Var x, Var y, int d) {
+            this.x = x;
+            this.y = y;
+            this.d = d;
+        }
+
+        @Override
+        public Set<Var> vars() {
+            return HashSet.of(x, y);
+        }
+
+        @Override
+        public Cons symbolicRepr() {
+            return Cons.make(Cons.NIL, d == 0 ? "v<=v" : "v<v", x, y);
+        }
+
+        @Override
+        public String toString() {
+            return symbolicRepr().toString();
+        }
+
+        @Override
+        public void maybeAddToAgenda(Solver solver, int varIndex, Domain dom) {
+            solver.enqueue(this, 0);
+        }
+
+        @Override
+        public boolean propagate(Solver solver) {
+            final Var x = walkVar(this.x, solver.subst), y = walkVar(this.y, solver.subst);
+
+            if (x.index == y.index) return d <= 0;
+
+            final Domain domX = solver.getDomain(x.index), domY = solver.getDomain(y.index);
+            if (isEmpty(domX) || isEmpty(domY)) return false;
+
+            if (hasBounds(domY) && !reduceToAtMost(solver, x.index, (long) domY.getUpperBound() - d)) return false;
+            if (hasBounds(domX) && !reduceToAtLeast(solver, y.index, (long) domX.getLowerBound() + d)) return false;
+
+            // Narrowing one of the bounds cannot move the other, so this is the fixpoint
+            final Domain domX1 = solver.getDomain(x.index), domY1 = solver.getDomain(y.index);
+            if (hasBounds(domX1) && hasBounds(domY1) && (long) domX1.getUpperBound() + d <= domY1.getLowerBound()) {
+                return true;
+            }
+            return solver.subscribe(this);
+        }
+    }
+
+    public static Goal leqO(Var x, Var y) {
+        return new AriGoal(new LeqVV(x, y, 0));
+    }
+
+    public static Goal leqO(int x, Var y) {
+        return new AriGoal(new LeqCV(x, y));
+    }
+
+    public static Goal leqO(Var x, int y) {
+        return new AriGoal(new LeqVC(x, y));
+    }
+
+    public static Goal leqO(int x, int y) {
+        return x <= y ? Goal.success() : Goal.failure();
+    }
+
+    public static Goal ltO(Var x, Var y) {
+        return new AriGoal(new LeqVV(x, y, 1));
+    }
+
+    public static Goal ltO(int x, Var y) {
+        return x == Integer.MAX_VALUE ? Goal.failure() : new AriGoal(new LeqCV(x + 1, y));
+    }
+
+    public static Goal ltO(Var x, int y) {
+        return y == Integer.MIN_VALUE ? Goal.failure() : new AriGoal(new LeqVC(x, y - 1));
+    }
+
+    public static Goal ltO(int x, int y) {
+        return x < y ? Goal.success() : Goal.failure();
+    }
+
+    public static Goal geqO(Var x, Var y) {
+        return leqO(y, x);
+    }
+
+    public static Goal geqO(int x, Var y) {
+        return leqO(y, x);
+    }
+
+    public static Goal geqO(Var x, int y) {
+        return leqO(y, x);
+    }
+
+    public static Goal geqO(int x, int y) {
+        return leqO(y, x);
+    }
+
+    public static Goal gtO(Var x, Var y) {
+        return ltO(y, x);
+    }
+
+    public static Goal gtO(int x, Var y) {
+        return ltO(y, x);
+    }
+
+    public static Goal gtO(Var x, int y) {
+        return ltO(y, x);
     }
 
-    //    static class LeqVC implements AriConstraint {
-//        final Var x;
-//        final int y;
-//
-//        public LeqVC(Var x, int y) {
-//            this.x = x;
-//            this.y = y;
-//        }
-//
-//        @Override
-//        public Set<Var> vars() {
-//            return HashSet.of(x);
-//        }
-//
-//        @Override
-//        public Cons symbolicRepr() {
-//            return Cons.th(Cons.NIL, "v<=n", x, y);
-//        }
-//
-//        @Override
-//        public boolean propagate(Propagator propagator) {
-//            return propagator.feed1(x, (xv, domX) -> {
-//                if (domX.hasSolution()) {
-//                    return domX.solution() <= y;
-//                } else {
-//                    propagator.add(new LeqVC(xv, y));
-//                    if (domX.isEnumerated()) {
-//                        return propagator.add(Enumerated.of(xv, domX.values().filter(x -> x <= y)));
-//                    } else if (domX.isBounded()) {
-//                        final int ubX = domX.getUpperBound();
-//                        if (ubX <= y) return true;
-//                        return propagator.add(RangeDomain.of(xv, domX.getLowerBound(), Math.min(ubX, y)));
-//                    } else {
-//                        return true;
-//                    }
-//                }
-//            });
-//        }
-//    }
-//
-//
-//    static class LeqCV implements AriConstraint {
-//        final int x;
-//        final Var y;
-//
-//        public LeqCV(int x, Var y) {
-//            this.x = x;
-//            this.y = y;
-//        }
-//
-//        @Override
-//        public Set<Var> vars() {
-//            return HashSet.of(y);
-//        }
-//
-//        @Override
-//        public Cons symbolicRepr() {
-//            return Cons.th(Cons.NIL, "n<=v", x, y);
-//        }
-//
-//        @Override
-//        public boolean propagate(Propagator propagator) {
-//            return propagator.feed1(y, (yv, domY) -> {
-//                if (domY.hasSolution()) {
-//                    return x <= domY.solution();
-//                } else {
-//                    propagator.add(new LeqCV(x, yv));
-//                    if (domY.isEnumerated()) {
-//                        return propagator.add(Enumerated.of(yv, domY.values().filter(y -> x <= y)));
-//                    } else if (domY.isBounded()) {
-//                        final int lbY = domY.getLowerBound();
-//                        if (x <= lbY) return true;
-//                        return propagator.add(RangeDomain.of(yv, Math.max(lbY, x), domY.getUpperBound()));
-//                    } else {
-//                        return true;
-//                    }
-//                }
-//            });
-//        }
-//    }
-//
-//    static class LeqVV implements AriConstraint {
-//        final Var x, y;
-//
-//        public LeqVV(Var x, Var y) {
-//            this.x = x;
-//            this.y = y;
-//        }
-//
-//        @Override
-//        public Set<Var> vars() {
-//            return HashSet.of(x, y);
-//        }
-//
-//        @Override
-//        public Cons symbolicRepr() {
-//            return Cons.th(Cons.NIL, "v<=v", x, y);
-//        }
-//
-//        @Override
-//        public boolean propagate(Propagator propagator) {
-//            return propagator.feed2(x, y, (xv, domX, yv, domY) -> {
-//                if (xv.seq == yv.seq) {
-//                    return true;
-//                } else if (domX.hasSolution()) {
-//                    return new LeqCV(domX.solution(), yv).propagate(propagator);
-//                } else if (domY.hasSolution()) {
-//                    return new LeqVC(xv, domY.solution()).propagate(propagator);
-//                } else if (domX.isBounded() && domY.isBounded()) {
-//                    final int lbX = domX.getLowerBound(), ubX = domX.getUpperBound(),
-//                            lbY = domY.getLowerBound(), ubY = domY.getUpperBound();
-//                    if (ubX <= lbY) return true;
-//                    propagator.add(new LeqVV(xv, yv));
-//                    return propagator.add(RangeDomain.of(xv, lbX, Math.min(ubX, ubY)).intersect(domX)) &&
-//                            propagator.add(RangeDomain.of(yv, Math.max(lbX, lbY), ubY).intersect(domY));
-//                } else {
-//                    propagator.add(new LeqVV(xv, yv));
-//                    return true;
-//                }
-//            });
-//        }
-//    }
-//
-//    public static Goal leqO(Var x, Var y) {
-//        return new AriGoal(new LeqVV(x, y));
-//    }
-//
-//    public static Goal leqO(int x, Var y) {
-//        return new AriGoal(new LeqCV(x, y));
-//    }
-//
-//    public static Goal leqO(Var x, int y) {
-//        return new AriGoal(new LeqVC(x, y));
-//    }
-//
-//    public static Goal leqO(int x, int y) {
-//        return x <= y ? Goal.success() : Goal.failure();
-//    }
-//
-//
-//    static class LtVC implements AriConstraint {
-//        final Var x;
-//        final int y;
-//
-//        public LtVC(Var x, int y) {
-//            this.x = x;
-//            this.y = y;
-//        }
-//
-//        @Override
-//        public Set<Var> vars() {
-//            return HashSet.of(x);
-//        }
-//
-//        @Override
-//        public Cons symbolicRepr() {
-//            return Cons.th(Cons.NIL, "v<n", x, y);
-//        }
-//
-//        @Override
-//        public boolean propagate(Propagator propagator) {
-//            return propagator.feed1(x, (xv, domX) -> {
-//                if (domX.hasSolution()) {
-//                    return domX.solution() < y;
-//                } else {
-//                    propagator.add(new LtVC(xv, y));
-//                    if (domX.isEnumerated()) {
-//                        return propagator.add(Enumerated.of(xv, domX.values().filter(x -> x < y)));
-//                    } else if (domX.isBounded()) {
-//                        final int ubX = domX.getUpperBound();
-//                        if (ubX < y) return true;
-//                        return propagator.add(RangeDomain.of(xv, domX.getLowerBound(), Math.min(ubX, y - 1)));
-//                    } else {
-//                        return true;
-//                    }
-//                }
-//            });
-//        }
-//    }
-//
-//
-//    static class LtCV implements AriConstraint {
-//        final int x;
-//        final Var y;
-//
-//        public LtCV(int x, Var y) {
-//            this.x = x;
-//            this.y = y;
-//        }
-//
-//        @Override
-//        public Set<Var> vars() {
-//            return HashSet.of(y);
-//        }
-//
-//        @Override
-//        public Cons symbolicRepr() {
-//            return Cons.th(Cons.NIL, "n<v", x, y);
-//        }
-//
-//        @Override
-//        public boolean propagate(Propagator propagator) {
-//            return propagator.feed1(y, (yv, domY) -> {
-//                if (domY.hasSolution()) {
-//                    return x < domY.solution();
-//                } else {
-//                    propagator.add(new LtCV(x, yv));
-//                    if (domY.isEnumerated()) {
-//                        return propagator.add(Enumerated.of(yv, domY.values().filter(y -> x < y)));
-//                    } else if (domY.isBounded()) {
-//                        final int lbY = domY.getLowerBound();
-//                        if (x < lbY) return true;
-//                        return propagator.add(RangeDomain.of(yv, Math.max(lbY, x + 1), domY.getUpperBound()));
-//                    } else {
-//                        return true;
-//                    }
-//                }
-//            });
-//        }
-//    }
-//
-//    static class LtVV implements AriConstraint {
-//        final Var x, y;
-//
-//        public LtVV(Var x, Var y) {
-//            this.x = x;
-//            this.y = y;
-//        }
-//
-//        @Override
-//        public Set<Var> vars() {
-//            return HashSet.of(x, y);
-//        }
-//
-//        @Override
-//        public Cons symbolicRepr() {
-//            return Cons.th(Cons.NIL, "v<v", x, y);
-//        }
-//
-//        @Override
-//        public boolean propagate(Propagator propagator) {
-//            return propagator.feed2(x, y, (xv, domX, yv, domY) -> {
-//                if (xv.seq == yv.seq) {
-//                    return false;
-//                } else if (domX.hasSolution()) {
-//                    return new LtCV(domX.solution(), yv).propagate(propagator);
-//                } else if (domY.hasSolution()) {
-//                    return new LtVC(xv, domY.solution()).propagate(propagator);
-//                } else if (domX.isBounded() && domY.isBounded()) {
-//                    final int lbX = domX.getLowerBound(), ubX = domX.getUpperBound(),
-//                            lbY = domY.getLowerBound(), ubY = domY.getUpperBound();
-//                    if (ubX < lbY) return true;
-//                    propagator.add(new LtVV(xv, yv));
-//                    return propagator.add(RangeDomain.of(xv, lbX, Math.min(ubX, ubY - 1)).intersect(domX)) &&
-//                            propagator.add(RangeDomain.of(yv, Math.max(lbX + 1, lbY), ubY).intersect(domY));
-//                } else {
-//                    propagator.add(new LtVV(xv, yv));
-//                    return true;
-//                }
-//            });
-//        }
-//    }
-//
-//    public static Goal ltO(Var x, Var y) {
-//        return new AriGoal(new LtVV(x, y));
-//    }
-//
-//    public static Goal ltO(int x, Var y) {
-//        return new AriGoal(new LtCV(x, y));
-//    }
-//
-//    public static Goal ltO(Var x, int y) {
-//        return new AriGoal(new LtVC(x, y));
-//    }
-//
-//    public static Goal ltO(int x, int y) {
-//        return x < y ? Goal.success() : Goal.failure();
-//    }
+    public static Goal gtO(int x, int y) {
+        return ltO(y, x);
+    }
 
     static class TimesCVV implements FdConstraint {
         final int x;
@@ -2002,104 +3352,459 @@ public class Fd {
         return Goal.unify(z, x * y);
     }
 
+    /**
+     * A linear constraint over any number of terms: c<sub>1</sub>x<sub>1</sub> + ... + c<sub>n</sub>x<sub>n</sub>
+     * compared to a constant.
+     *
+     * <p>Propagation narrows the bounds of each variable from the least and the greatest possible value of the
+     * other terms, until none of the bounds change.  Solved variables are folded into the constant, and the
+     * remaining terms are subscribed as a new, smaller constraint.</p>
+     */
+    static abstract class Linear implements FdConstraint {
+        final int[] coeffs;
+        final Var[] xs;
+        final long rhs;
+
+        Linear(int[] coeffs, Var[] xs, long rhs) {
+            this.coeffs = coeffs;
+            this.xs = xs;
+            this.rhs = rhs;
+        }
+
+        /**
+         * Creates a constraint of the same kind over other terms.
+         */
+        abstract Linear make(int[] coeffs, Var[] xs, long rhs);
+
+        /**
+         * Checks the constraint when the sum of all terms is known.
+         */
+        abstract boolean holds(long sum);
+
+        /**
+         * Checks if the constraint holds whatever the values of the variables within the given sum bounds.
+         */
+        abstract boolean isEntailed(long sumMin, long sumMax);
+
+        /**
+         * Tells whether a lower bound of the sum of the terms is implied by the constraint.
+         */
+        abstract boolean boundsFromBelow();
+
+        abstract String operator();
+
+        @Override
+        public Set<Var> vars() {
+            return HashSet.of(xs);
+        }
+
+        @Override
+        public Cons symbolicRepr() {
+            return Cons.make(Cons.NIL, "sum" + operator(), Cons.fromIterable(List.ofAll(coeffs)),
+                    Cons.fromIterable(List.of(xs)), rhs);
+        }
+
+        @Override
+        public String toString() {
+            return symbolicRepr().toString();
+        }
+
+        @Override
+        public void maybeAddToAgenda(Solver solver, int varIndex, Domain dom) {
+            solver.enqueue(this, 1);
+        }
+
+        @Override
+        public boolean propagate(Solver solver) {
+            // Walk the variables, folding solved ones into the constant and merging the repeated ones
+            final int len = xs.length;
+            final int[] cs = new int[len];
+            final Var[] vs = new Var[len];
+            long r = rhs;
+            int n = 0;
+            for (int i = 0; i < len; i++) {
+                final Var v = walkVar(xs[i], solver.subst);
+                final Domain dom = solver.getDomain(v.index);
+                if (isEmpty(dom)) return false;
+                if (hasSolution(dom)) {
+                    r -= (long) coeffs[i] * solution(dom);
+                    continue;
+                }
+                int j = 0;
+                while (j < n && vs[j].index != v.index) j++;
+                if (j == n) vs[n++] = v;
+                cs[j] += coeffs[i];
+            }
+
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+
+                // Bounds of the terms, summed up over the bounded variables
+                final long[] mins = new long[n], maxs = new long[n];
+                final boolean[] bounded = new boolean[n];
+                long sumMin = 0, sumMax = 0;
+                int minInfinite = 0, maxInfinite = 0;
+                for (int i = 0; i < n; i++) {
+                    final Domain dom = solver.getDomain(vs[i].index);
+                    if (isEmpty(dom)) return false;
+                    bounded[i] = cs[i] == 0 || dom.isBounded();
+                    if (!bounded[i]) {
+                        minInfinite++;
+                        maxInfinite++;
+                        continue;
+                    }
+                    if (cs[i] == 0) continue;
+                    final long lo = (long) cs[i] * (cs[i] > 0 ? dom.getLowerBound() : dom.getUpperBound()),
+                            hi = (long) cs[i] * (cs[i] > 0 ? dom.getUpperBound() : dom.getLowerBound());
+                    mins[i] = lo;
+                    maxs[i] = hi;
+                    sumMin += lo;
+                    sumMax += hi;
+                }
+
+                if (minInfinite == 0 && sumMin > r) return false;
+                if (boundsFromBelow() && maxInfinite == 0 && sumMax < r) return false;
+                if (maxInfinite == 0 && isEntailed(minInfinite == 0 ? sumMin - r : Long.MIN_VALUE, sumMax - r)) {
+                    return true;
+                }
+
+                for (int i = 0; i < n; i++) {
+                    if (cs[i] == 0) continue;
+                    final boolean selfInfinite = !bounded[i];
+                    // Bounds on c * x from the bounds of the other terms
+                    final boolean hasUpper = minInfinite - (selfInfinite ? 1 : 0) == 0;
+                    final boolean hasLower = boundsFromBelow() && maxInfinite - (selfInfinite ? 1 : 0) == 0;
+                    if (!hasUpper && !hasLower) continue;
+                    final long upper = hasUpper ? r - (sumMin - mins[i]) : Long.MAX_VALUE,
+                            lower = hasLower ? r - (sumMax - maxs[i]) : Long.MIN_VALUE;
+                    final long lb, ub;
+                    if (cs[i] > 0) {
+                        lb = hasLower ? -Math.floorDiv(-lower, cs[i]) : Long.MIN_VALUE;
+                        ub = hasUpper ? Math.floorDiv(upper, cs[i]) : Long.MAX_VALUE;
+                    } else {
+                        lb = hasUpper ? -Math.floorDiv(-upper, cs[i]) : Long.MIN_VALUE;
+                        ub = hasLower ? Math.floorDiv(lower, cs[i]) : Long.MAX_VALUE;
+                    }
+                    if (lb > ub || lb > Integer.MAX_VALUE || ub < Integer.MIN_VALUE) return false;
+                    final Domain dom = solver.getDomain(vs[i].index);
+                    if (dom.isBounded() && lb <= dom.getLowerBound() && dom.getUpperBound() <= ub) continue;
+                    if (!solver.reduceDomain(vs[i].index, narrowing(lb, ub))) return false;
+                    changed = true;
+                }
+            }
+
+            // Subscribe the remaining terms
+            final java.util.List<Integer> remaining = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                if (cs[i] == 0) continue;
+                final Domain dom = solver.getDomain(vs[i].index);
+                if (hasSolution(dom)) r -= (long) cs[i] * solution(dom);
+                else remaining.add(i);
+            }
+            if (remaining.isEmpty()) return holds(0 - r);
+            final int[] cs2 = new int[remaining.size()];
+            final Var[] vs2 = new Var[remaining.size()];
+            for (int k = 0; k < cs2.length; k++) {
+                cs2[k] = cs[remaining.get(k)];
+                vs2[k] = vs[remaining.get(k)];
+            }
+            return solver.subscribe(make(cs2, vs2, r));
+        }
+    }
+
+    /**
+     * The domain to intersect with when narrowing to the given bounds.  Small ranges are made definite, so that the
+     * constraints that only wake up on definite domains get to see them.
+     */
+    static Domain narrowing(long lb, long ub) {
+        final int lo = (int) Math.max(lb, Integer.MIN_VALUE), hi = (int) Math.min(ub, Integer.MAX_VALUE);
+        if ((long) hi - lo < Bits.MAX_SPAN && Bits.isCompact(lo, hi, hi - lo + 1)) return Bits.range(lo, hi);
+        return Domain.of(lo, hi);
+    }
+
+    /**
+     * Linear equation: c<sub>1</sub>x<sub>1</sub> + ... + c<sub>n</sub>x<sub>n</sub> = rhs.
+     */
+    static class LinearEq extends Linear {
+        LinearEq(int[] coeffs, Var[] xs, long rhs) {
+            super(coeffs, xs, rhs);
+        }
+
+        @Override
+        Linear make(int[] coeffs, Var[] xs, long rhs) {
+            return new LinearEq(coeffs, xs, rhs);
+        }
+
+        @Override
+        boolean holds(long sum) {
+            return sum == 0;
+        }
+
+        @Override
+        boolean isEntailed(long sumMin, long sumMax) {
+            return sumMin == 0 && sumMax == 0;
+        }
+
+        @Override
+        boolean boundsFromBelow() {
+            return true;
+        }
+
+        @Override
+        String operator() {
+            return "=";
+        }
+    }
+
+    /**
+     * Linear inequality: c<sub>1</sub>x<sub>1</sub> + ... + c<sub>n</sub>x<sub>n</sub> &le; rhs.
+     */
+    static class LinearLeq extends Linear {
+        LinearLeq(int[] coeffs, Var[] xs, long rhs) {
+            super(coeffs, xs, rhs);
+        }
+
+        @Override
+        Linear make(int[] coeffs, Var[] xs, long rhs) {
+            return new LinearLeq(coeffs, xs, rhs);
+        }
+
+        @Override
+        boolean holds(long sum) {
+            return sum <= 0;
+        }
+
+        @Override
+        boolean isEntailed(long sumMin, long sumMax) {
+            return sumMax <= 0;
+        }
+
+        @Override
+        boolean boundsFromBelow() {
+            return false;
+        }
+
+        @Override
+        String operator() {
+            return "<=";
+        }
+    }
+
+    static Var[] checkTerms(int[] coeffs, Var[] vars) {
+        if (coeffs.length != vars.length) {
+            throw new IllegalArgumentException("the numbers of coefficients and variables differ");
+        }
+        return vars.clone();
+    }
+
+    static Var[] withRhs(Var[] vars, Var rhs) {
+        final Var[] result = Arrays.copyOf(vars, vars.length + 1);
+        result[vars.length] = rhs;
+        return result;
+    }
+
+    static int[] withRhs(int[] coeffs) {
+        final int[] result = Arrays.copyOf(coeffs, coeffs.length + 1);
+        result[coeffs.length] = -1;
+        return result;
+    }
+
+    /**
+     * Linear equation over any number of terms.
+     *
+     * @param coeffs the coefficients
+     * @param vars   the variables, one for each coefficient
+     * @param rhs    the right-hand side
+     * @return goal {@code coeffs[0] * vars[0] + ... + coeffs[n-1] * vars[n-1] = rhs}
+     */
+    public static Goal sumO(int[] coeffs, Var[] vars, int rhs) {
+        return new AriGoal(new LinearEq(coeffs.clone(), checkTerms(coeffs, vars), rhs));
+    }
+
+    public static Goal sumO(int[] coeffs, Var[] vars, Var rhs) {
+        return new AriGoal(new LinearEq(withRhs(coeffs), withRhs(checkTerms(coeffs, vars), rhs), 0));
+    }
+
+    /**
+     * Linear inequality over any number of terms.
+     *
+     * @param coeffs the coefficients
+     * @param vars   the variables, one for each coefficient
+     * @param rhs    the right-hand side
+     * @return goal {@code coeffs[0] * vars[0] + ... + coeffs[n-1] * vars[n-1] <= rhs}
+     */
+    public static Goal sumLeqO(int[] coeffs, Var[] vars, int rhs) {
+        return new AriGoal(new LinearLeq(coeffs.clone(), checkTerms(coeffs, vars), rhs));
+    }
+
+    public static Goal sumLeqO(int[] coeffs, Var[] vars, Var rhs) {
+        return new AriGoal(new LinearLeq(withRhs(coeffs), withRhs(checkTerms(coeffs, vars), rhs), 0));
+    }
+
     public static Goal linearO(int c1, Var v1, int c2, Var v2, Var r) {
-        return Goal.fresh((m1, m2) -> Goal.seq(
-                timesO(c1, v1, m1),
-                timesO(c2, v2, m2),
-                plusO(m1, m2, r)
-        ));
+        return sumO(new int[]{c1, c2}, new Var[]{v1, v2}, r);
     }
 
     public static Goal linearO(int c1, Var v1, int c2, Var v2, int r) {
-        return Goal.fresh((m1, m2) -> Goal.seq(
-                timesO(c1, v1, m1),
-                timesO(c2, v2, m2),
-                plusO(m1, m2, r)
-        ));
+        return sumO(new int[]{c1, c2}, new Var[]{v1, v2}, r);
     }
 
     public static Goal linearO(int c1, Var v1, int c2, Var v2, int c3, Var v3, Var r) {
-        return Goal.fresh((m1, m2, m12, m3) -> Goal.seq(
-                timesO(c1, v1, m1),
-                timesO(c2, v2, m2),
-                plusO(m1, m2, m12),
-                timesO(c3, v3, m3),
-                plusO(m12, m3, r)
-        ));
+        return sumO(new int[]{c1, c2, c3}, new Var[]{v1, v2, v3}, r);
     }
 
     public static Goal linearO(int c1, Var v1, int c2, Var v2, int c3, Var v3, int r) {
-        return Goal.fresh((m1, m2, m12, m3) -> Goal.seq(
-                timesO(c1, v1, m1),
-                timesO(c2, v2, m2),
-                plusO(m1, m2, m12),
-                timesO(c3, v3, m3),
-                plusO(m12, m3, r)
-        ));
+        return sumO(new int[]{c1, c2, c3}, new Var[]{v1, v2, v3}, r);
     }
 
     public static Goal linearO(int c1, Var v1, int c2, Var v2, int c3, Var v3, int c4, Var v4, Var r) {
-        return Goal.fresh((m1, m2, m12, m3, m13, m4) -> Goal.seq(
-                timesO(c1, v1, m1),
-                timesO(c2, v2, m2),
-                plusO(m1, m2, m12),
-                timesO(c3, v3, m3),
-                plusO(m12, m3, m13),
-                timesO(c4, v4, m4),
-                plusO(m13, m4, r)
-        ));
+        return sumO(new int[]{c1, c2, c3, c4}, new Var[]{v1, v2, v3, v4}, r);
     }
 
     public static Goal linearO(int c1, Var v1, int c2, Var v2, int c3, Var v3, int c4, Var v4, int r) {
-        return Goal.fresh((m1, m2, m12, m3, m13, m4) -> Goal.seq(
-                timesO(c1, v1, m1),
-                timesO(c2, v2, m2),
-                plusO(m1, m2, m12),
-                timesO(c3, v3, m3),
-                plusO(m12, m3, m13),
-                timesO(c4, v4, m4),
-                plusO(m13, m4, r)
-        ));
+        return sumO(new int[]{c1, c2, c3, c4}, new Var[]{v1, v2, v3, v4}, r);
     }
 
     public static Goal linearO(int c1, Var v1, int c2, Var v2, int c3, Var v3, int c4, Var v4, int c5, Var v5, Var r) {
-        return Goal.fresh((m1, m2, m12, m3, m13, m4) -> Goal.fresh((m14, m5) -> Goal.seq(
-                timesO(c1, v1, m1),
-                timesO(c2, v2, m2),
-                plusO(m1, m2, m12),
-                timesO(c3, v3, m3),
-                plusO(m12, m3, m13),
-                timesO(c4, v4, m4),
-                plusO(m13, m4, m14),
-                timesO(c5, v5, m5),
-                plusO(m14, m5, r)
-        )));
+        return sumO(new int[]{c1, c2, c3, c4, c5}, new Var[]{v1, v2, v3, v4, v5}, r);
     }
 
     public static Goal linearO(int c1, Var v1, int c2, Var v2, int c3, Var v3, int c4, Var v4, int c5, Var v5, int r) {
-        return Goal.fresh((m1, m2, m12, m3, m13, m4) -> Goal.fresh((m14, m5) -> Goal.seq(
-                timesO(c1, v1, m1),
-                timesO(c2, v2, m2),
-                plusO(m1, m2, m12),
-                timesO(c3, v3, m3),
-                plusO(m12, m3, m13),
-                timesO(c4, v4, m4),
-                plusO(m13, m4, m14),
-                timesO(c5, v5, m5),
-                plusO(m14, m5, r)
-        )));
+        return sumO(new int[]{c1, c2, c3, c4, c5}, new Var[]{v1, v2, v3, v4, v5}, r);
+    }
+
+    /**
+     * How labeling chooses the next variable.
+     */
+    public enum VariableSelection {
+        /**
+         * The first unsolved variable in the given order.
+         */
+        INPUT_ORDER,
+        /**
+         * The smallest domain, breaking ties by the most constraints.
+         */
+        FIRST_FAIL,
+        /**
+         * The most constraints, breaking ties by the smallest domain.
+         */
+        MOST_CONSTRAINED,
+        /**
+         * The smallest ratio of domain size to weighted degree, where each constraint counts once plus the number
+         * of times its propagation has failed during the search.
+         */
+        DOM_WDEG,
+        /**
+         * The largest difference between the smallest and the second smallest value.
+         */
+        MAX_REGRET
+    }
+
+    /**
+     * How labeling chooses the value to branch on.
+     */
+    public enum ValueChoice {
+        MIN,
+        MAX,
+        MEDIAN,
+        RANDOM
+    }
+
+    /**
+     * How labeling branches on the chosen value v.
+     */
+    public enum Branching {
+        /**
+         * x = v first, then x &ne; v.
+         */
+        ENUMERATE,
+        /**
+         * x &le; v first, then x &gt; v; for {@link ValueChoice#MAX} x &ge; v first, then x &lt; v.  With
+         * {@link ValueChoice#MEDIAN}, the domain is split in two halves.
+         */
+        BISECT
+    }
+
+    /**
+     * Options for labeling.  The defaults pick the smallest domain first and bisect it.
+     */
+    public static class LabelingOptions {
+        final VariableSelection variables;
+        final ValueChoice values;
+        final Branching branching;
+        final long seed;
+        final ForkJoinPool pool;
+        final int forkDepth;
+
+        LabelingOptions(VariableSelection variables, ValueChoice values, Branching branching, long seed,
+                        ForkJoinPool pool, int forkDepth) {
+            this.variables = variables;
+            this.values = values;
+            this.branching = branching;
+            this.seed = seed;
+            this.pool = pool;
+            this.forkDepth = forkDepth;
+        }
+
+        public static LabelingOptions defaults() {
+            return new LabelingOptions(VariableSelection.FIRST_FAIL, ValueChoice.MEDIAN, Branching.BISECT, 0,
+                    ForkJoinPool.commonPool(), 0);
+        }
+
+        public LabelingOptions variables(VariableSelection variables) {
+            return new LabelingOptions(variables, values, branching, seed, pool, forkDepth);
+        }
+
+        public LabelingOptions values(ValueChoice values) {
+            return new LabelingOptions(variables, values, branching, seed, pool, forkDepth);
+        }
+
+        public LabelingOptions branching(Branching branching) {
+            return new LabelingOptions(variables, values, branching, seed, pool, forkDepth);
+        }
+
+        /**
+         * Sets the seed for {@link ValueChoice#RANDOM}.
+         */
+        public LabelingOptions seed(long seed) {
+            return new LabelingOptions(variables, values, branching, seed, pool, forkDepth);
+        }
+
+        /**
+         * Labels in parallel: the choices down to the given depth fork their right branch as a separate task.
+         * Solutions of the forked branches come in no particular order.
+         *
+         * @param pool      the pool running the tasks
+         * @param forkDepth the depth of the search tree down to which the choices fork, 0 for sequential search
+         * @return the options
+         */
+        public LabelingOptions parallel(ForkJoinPool pool, int forkDepth) {
+            if (forkDepth < 0) throw new IllegalArgumentException("negative fork depth");
+            return new LabelingOptions(variables, values, branching, seed, pool, forkDepth);
+        }
+
+        public LabelingOptions parallel(int forkDepth) {
+            return parallel(ForkJoinPool.commonPool(), forkDepth);
+        }
     }
 
     static class LabelingGoal extends Goal {
         final List<Var> vars;
+        final LabelingOptions options;
 
         public LabelingGoal(List<Var> vars) {
-            this.vars = vars;
+            this(vars, LabelingOptions.defaults());
+        }
+
+        public LabelingGoal(List<Var> vars, LabelingOptions options) {
+            this.vars = vars.distinct();
+            this.options = options;
         }
 
         @Override
         public Series<Subst> apply(Subst subst) {
-            return new Solver(subst).label(vars.toSet());
+            return new TrailSolver(subst, options).label(vars);
         }
     }
 
@@ -2111,4 +3816,70 @@ public class Fd {
     public static Goal labeling(List<Var> vars) {
         return new LabelingGoal(vars);
     }
+
+    public static Goal labeling(LabelingOptions options, Var... vars) {
+        return new LabelingGoal(List.ofAll(Arrays.stream(vars)), options);
+    }
+
+    public static Goal labeling(LabelingOptions options, List<Var> vars) {
+        return new LabelingGoal(vars, options);
+    }
+
+    /**
+     * Branch and bound: solves the model again and again, each time with the objective bounded strictly below
+     * (or above) its value in the previous solution.  The bound is posted before the model, so that the solver
+     * prunes the inferior subtrees.  The series ends after the optimal solution, when no better one exists.
+     */
+    static class OptimizeGoal extends Goal {
+        final Var objective;
+        final Goal model;
+        final boolean maximize;
+
+        OptimizeGoal(Var objective, Goal model, boolean maximize) {
+            this.objective = objective;
+            this.model = model;
+            this.maximize = maximize;
+        }
+
+        @Override
+        public Series<Subst> apply(Subst subst) {
+            return improve(subst, Goal.success());
+        }
+
+        Series<Subst> improve(Subst subst, Goal bound) {
+            return Series.suspension(() -> {
+                final Series<Subst> solutions = seq(bound, model, labeling(objective)).apply(subst).forceDeep();
+                if (solutions.isEmpty()) return Series.empty();
+                final Subst solution = solutions.head();
+                final Object value = walk(objective, solution);
+                if (!(value instanceof Integer)) {
+                    throw new IllegalStateException("objective has no finite domain: " + objective);
+                }
+                final int v = (Integer) value;
+                return Series.cons(solution, improve(subst, maximize ? gtO(objective, v) : ltO(objective, v)));
+            });
+        }
+    }
+
+    /**
+     * Finds solutions of the model with decreasing values of the objective; the last one is optimal.
+     *
+     * @param objective the variable to minimize, which the model must constrain to a finite domain
+     * @param model     the model, usually ending with labeling
+     * @return the goal
+     */
+    public static Goal minimizeO(Var objective, Goal model) {
+        return new OptimizeGoal(objective, model, false);
+    }
+
+    /**
+     * Finds solutions of the model with increasing values of the objective; the last one is optimal.
+     *
+     * @param objective the variable to maximize, which the model must constrain to a finite domain
+     * @param model     the model, usually ending with labeling
+     * @return the goal
+     */
+    public static Goal maximizeO(Var objective, Goal model) {
+        return new OptimizeGoal(objective, model, true);
+    }
 }
@@ -54,6 +54,13 @@ abstract public class IntMap<V> implements Iterable<IntMap.Entry<V>> {
         return (Nil<V>) Nil.NIL;
     }
 
+    /**
+     * Returns an empty map of the same implementation as this one.
+     */
+    protected IntMap<V> emptyLike() {
+        return empty();
+    }
+
     protected static class Triplet<V> {
         final int key;
         final V value;
@@ -482,8 +489,8 @@ abstract public class IntMap<V> implements Iterable<IntMap.Entry<V>> {
      * with entries not satisfying it.
      */
     public Tuple2<IntMap<V>, IntMap<V>> splitOn(Predicate<Entry<V>> predicate) {
-        IntMap<V> positives = empty();
-        IntMap<V> negatives = empty();
+        IntMap<V> positives = emptyLike();
+        IntMap<V> negatives = emptyLike();
         for (Entry<V> entry : this) {
             if (predicate.test(entry)) positives = positives.with(entry.key, entry.value);
             else negatives = negatives.with(entry.key, entry.value);
@@ -499,7 +506,7 @@ abstract public class IntMap<V> implements Iterable<IntMap.Entry<V>> {
      * @implSpec If {@code f} returns {@code null} on an entry, that entry is not added to the result.
      */
     public IntMap<V> map(Function<Entry<V>, Entry<V>> f) {
-        IntMap<V> result = empty();
+        IntMap<V> result = emptyLike();
         for (Entry<V> entry : this) {
             final Entry<V> y = f.apply(entry);
             if (y != null) result = result.with(y.key, y.value);
@@ -516,7 +523,7 @@ abstract public class IntMap<V> implements Iterable<IntMap.Entry<V>> {
      * in the result.
      */
     public IntMap<V> mapValues(BiFunction<Integer, V, V> f) {
-        IntMap<V> result = empty();
+        IntMap<V> result = emptyLike();
         for (Entry<V> entry : this) {
             final V y = f.apply(entry.key, entry.value);
             if (y != null) result = result.with(entry.key, y);
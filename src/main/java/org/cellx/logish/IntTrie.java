@@ -0,0 +1,317 @@
+package org.cellx.logish;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A fast immutable integer-to-object map with wide nodes.
+ *
+ * @param <V> the type of values to which the integer keys are mapped
+ * @implNote The implementation is a bitmapped radix trie, five bits of the key per level, with up to 32 children
+ * per node kept in an array as small as the number of children.  A lookup in a map of 10,000 keys thus touches
+ * three nodes instead of fourteen, and an update copies three short arrays.  Negative keys are kept in a second
+ * trie by their complement.  It has the same API as {@link IntMap}, and iterates in ascending order of keys too.
+ * Removing the greatest key takes time in the depth of the trie to find the next one.
+ */
+public final class IntTrie<V> extends IntMap<V> {
+
+    static final int BITS = 5, WIDTH = 1 << BITS, MASK = WIDTH - 1;
+
+    /**
+     * A node, with its children in ascending order of their slots.  At the bottom level the children are values.
+     */
+    static final class Node {
+        final int bitmap;
+        final Object[] children;
+
+        Node(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+    }
+
+    private static final IntTrie<Object> EMPTY = new IntTrie<>(null, 0, null, 0, 0, -1);
+
+    /**
+     * The tries of the non-negative keys, and of the complements of the negative ones, with the shift of the bits of
+     * the key that select a child of the root.
+     */
+    private final Node positive, negative;
+    private final int positiveShift, negativeShift;
+
+    private IntTrie(Node positive, int positiveShift, Node negative, int negativeShift, int size, int maxKey) {
+        super(0, null, null, null, 0, size, maxKey);
+        this.positive = positive;
+        this.positiveShift = positiveShift;
+        this.negative = negative;
+        this.negativeShift = negativeShift;
+    }
+
+    /**
+     * Creates an empty map.
+     *
+     * @return An empty map.
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> IntTrie<V> empty() {
+        return (IntTrie<V>) EMPTY;
+    }
+
+    @Override
+    protected IntMap<V> emptyLike() {
+        return empty();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public int minKey() {
+        if (negative != null) return ~lastKey(negative, negativeShift);
+        return positive == null ? 0 : firstKey(positive, positiveShift);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V getOrNull(int key) {
+        Node node;
+        int shift;
+        if (key >= 0) {
+            node = positive;
+            shift = positiveShift;
+        } else {
+            node = negative;
+            shift = negativeShift;
+            key = ~key;
+        }
+        if (node == null || (shift + BITS < 32 && key >>> (shift + BITS) != 0)) return null;
+        while (true) {
+            final int bit = 1 << ((key >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) return null;
+            final Object child = node.children[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (shift == 0) return (V) child;
+            node = (Node) child;
+            shift -= BITS;
+        }
+    }
+
+    @Override
+    public IntMap<V> with(int key, V value) {
+        if (value == null) return without(key);
+        final V old = getOrNull(key);
+        if (old == value || value.equals(old)) return this;
+        final int newSize = old == null ? size + 1 : size;
+        final int newMaxKey = size == 0 ? key : Math.max(maxKey, key);
+        if (key >= 0) {
+            int shift = positive == null ? 0 : positiveShift;
+            Node root = positive;
+            // Grow the trie upwards until the key fits under the root
+            while (shift + BITS < 32 && key >>> (shift + BITS) != 0) {
+                if (root != null) root = new Node(1, new Object[]{root});
+                shift += BITS;
+            }
+            return new IntTrie<>(with(root, shift, key, value), shift, negative, negativeShift, newSize, newMaxKey);
+        } else {
+            final int complement = ~key;
+            int shift = negative == null ? 0 : negativeShift;
+            Node root = negative;
+            while (shift + BITS < 32 && complement >>> (shift + BITS) != 0) {
+                if (root != null) root = new Node(1, new Object[]{root});
+                shift += BITS;
+            }
+            return new IntTrie<>(positive, positiveShift, with(root, shift, complement, value), shift, newSize,
+                    newMaxKey);
+        }
+    }
+
+    private static Node with(Node node, int shift, int key, Object value) {
+        final int slot = (key >>> shift) & MASK, bit = 1 << slot;
+        final Object child;
+        if (shift == 0) {
+            child = value;
+        } else {
+            final Node old = node != null && (node.bitmap & bit) != 0 ?
+                    (Node) node.children[Integer.bitCount(node.bitmap & (bit - 1))] : null;
+            child = with(old, shift - BITS, key, value);
+        }
+        if (node == null) return new Node(bit, new Object[]{child});
+        final int position = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) != 0) {
+            final Object[] children = node.children.clone();
+            children[position] = child;
+            return new Node(node.bitmap, children);
+        }
+        final Object[] children = new Object[node.children.length + 1];
+        System.arraycopy(node.children, 0, children, 0, position);
+        children[position] = child;
+        System.arraycopy(node.children, position, children, position + 1, node.children.length - position);
+        return new Node(node.bitmap | bit, children);
+    }
+
+    @Override
+    public IntMap<V> without(int key) {
+        if (getOrNull(key) == null) return this;
+        if (size == 1) return empty();
+        final Node newPositive = key >= 0 ? without(positive, positiveShift, key) : positive;
+        final Node newNegative = key < 0 ? without(negative, negativeShift, ~key) : negative;
+        final int newMaxKey;
+        if (key != maxKey) newMaxKey = maxKey;
+        else if (newPositive != null) newMaxKey = lastKey(newPositive, positiveShift);
+        else newMaxKey = ~firstKey(newNegative, negativeShift);
+        return new IntTrie<>(newPositive, positiveShift, newNegative, negativeShift, size - 1, newMaxKey);
+    }
+
+    /**
+     * Removes a key known to be in a trie.
+     *
+     * @return the new trie, or {@code null} if it is empty
+     */
+    private static Node without(Node node, int shift, int key) {
+        final int bit = 1 << ((key >>> shift) & MASK);
+        final int position = Integer.bitCount(node.bitmap & (bit - 1));
+        if (shift > 0) {
+            final Node child = without((Node) node.children[position], shift - BITS, key);
+            if (child != null) {
+                final Object[] children = node.children.clone();
+                children[position] = child;
+                return new Node(node.bitmap, children);
+            }
+        }
+        if (node.children.length == 1) return null;
+        final Object[] children = new Object[node.children.length - 1];
+        System.arraycopy(node.children, 0, children, 0, position);
+        System.arraycopy(node.children, position + 1, children, position, children.length - position);
+        return new Node(node.bitmap & ~bit, children);
+    }
+
+    private static int firstKey(Node node, int shift) {
+        int key = 0;
+        while (true) {
+            key |= Integer.numberOfTrailingZeros(node.bitmap) << shift;
+            if (shift == 0) return key;
+            node = (Node) node.children[0];
+            shift -= BITS;
+        }
+    }
+
+    private static int lastKey(Node node, int shift) {
+        int key = 0;
+        while (true) {
+            key |= (31 - Integer.numberOfLeadingZeros(node.bitmap)) << shift;
+            if (shift == 0) return key;
+            node = (Node) node.children[node.children.length - 1];
+            shift -= BITS;
+        }
+    }
+
+    @Override
+    protected Triplet<V> pollFirst() {
+        final int key = minKey();
+        return new Triplet<>(key, getOrNull(key), without(key));
+    }
+
+    @Override
+    protected String toString(String indent) {
+        final StringBuilder builder = new StringBuilder();
+        for (Entry<V> entry : this) {
+            builder.append(indent).append(entry.key).append(": ").append(entry.value).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Iterates over a trie in ascending or descending order of keys.
+     */
+    private static final class TrieIterator<V> implements Iterator<Entry<V>> {
+        private final ArrayDeque<Node> nodes = new ArrayDeque<>();
+        private final ArrayDeque<int[]> positions = new ArrayDeque<>();
+        private final boolean complement;
+
+        /**
+         * @param complement whether the trie holds the complements of the keys, and is to be iterated in
+         *                   descending order
+         */
+        TrieIterator(Node root, int shift, boolean complement) {
+            this.complement = complement;
+            if (root != null) push(root, shift, 0);
+        }
+
+        private void push(Node node, int shift, int prefix) {
+            nodes.push(node);
+            // Position of the next child, the shift of the node, and the bits of the key above it
+            positions.push(new int[]{complement ? node.children.length - 1 : 0, shift, prefix});
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!nodes.isEmpty()) {
+                final Node node = nodes.peek();
+                final int[] position = positions.peek();
+                if (position[0] >= 0 && position[0] < node.children.length) {
+                    if (position[1] == 0) return true;
+                    final int index = position[0];
+                    position[0] += complement ? -1 : 1;
+                    push((Node) node.children[index], position[1] - BITS,
+                            position[2] | slot(node.bitmap, index) << position[1]);
+                } else {
+                    nodes.pop();
+                    positions.pop();
+                }
+            }
+            return false;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<V> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final Node node = nodes.peek();
+            final int[] position = positions.peek();
+            final int index = position[0];
+            position[0] += complement ? -1 : 1;
+            final int key = position[2] | slot(node.bitmap, index);
+            return new Entry<>(complement ? ~key : key, (V) node.children[index]);
+        }
+
+        /**
+         * Returns the slot of the child at a position in a node.
+         */
+        private static int slot(int bitmap, int index) {
+            for (int i = 0; i < index; i++) bitmap &= bitmap - 1;
+            return Integer.numberOfTrailingZeros(bitmap);
+        }
+    }
+
+    @Override
+    public Iterator<Entry<V>> iterator() {
+        final Iterator<Entry<V>> negatives = new TrieIterator<>(negative, negativeShift, true);
+        final Iterator<Entry<V>> positives = new TrieIterator<>(positive, positiveShift, false);
+        return new Iterator<Entry<V>>() {
+            @Override
+            public boolean hasNext() {
+                return negatives.hasNext() || positives.hasNext();
+            }
+
+            @Override
+            public Entry<V> next() {
+                return negatives.hasNext() ? negatives.next() : positives.next();
+            }
+        };
+    }
+
+    @Override
+    public void checkConsistency() {
+        int count = 0;
+        Integer previous = null;
+        for (Entry<V> entry : this) {
+            if (previous != null && previous >= entry.key) throw new IllegalStateException("keys out of order");
+            previous = entry.key;
+            count++;
+        }
+        if (count != size) throw new IllegalStateException("wrong size");
+        if (size > 0 && maxKey != previous) throw new IllegalStateException("wrong greatest key");
+    }
+}
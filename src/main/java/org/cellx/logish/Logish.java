@@ -5,28 +5,66 @@ import io.vavr.collection.*;
 import io.vavr.control.Option;
 
 import java.lang.Iterable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.stream.StreamSupport;
 
 public class Logish {
 
 
+    /**
+     * Substitution: the values of variables, and separately, the attributes of variables, by domain.
+     */
     public final static class Subst {
+        /**
+         * Whether substitutions keep their maps in {@link IntTrie}s rather than in AVL trees, which is selected by
+         * the system property {@code logish.trie}.
+         */
+        static final boolean TRIE = Boolean.getBoolean("logish.trie");
+
         final IntMap<Object> map;
+        final IntMap<Attribute[]> attributes;
 
         protected Subst(IntMap<Object> map) {
+            this(map, emptyMap(map instanceof IntTrie));
+        }
+
+        Subst(IntMap<Object> map, IntMap<Attribute[]> attributes) {
             this.map = map;
+            this.attributes = attributes;
         }
 
         public static Subst empty() {
-            return new Subst(IntMap.empty());
+            return empty(TRIE);
+        }
+
+        /**
+         * Returns an empty substitution, kept in {@link IntTrie}s or in AVL trees.
+         */
+        public static Subst empty(boolean trie) {
+            return new Subst(emptyMap(trie), emptyMap(trie));
+        }
+
+        static <V> IntMap<V> emptyMap(boolean trie) {
+            return trie ? IntTrie.empty() : IntMap.empty();
         }
 
         public Object getSome(int key) {
@@ -42,13 +80,31 @@ public class Logish {
         public Subst put(int key, Object value) {
             final IntMap<Object> newMap = map.with(key, value);
             if (newMap == map) return this;
-            else return new Subst(newMap);
+            else return new Subst(newMap, attributes);
         }
 
         public Subst remove(int key) {
             final IntMap<Object> newMap = map.without(key);
             if (newMap == map) return this;
-            else return new Subst(newMap);
+            else return new Subst(newMap, attributes);
+        }
+
+        /**
+         * Returns the attributes of a variable indexed by {@linkplain AttributeDomain#id() domain id}, or
+         * {@code null} if it has none.  The array must not be changed.
+         */
+        Attribute[] attributes(int varSeq) {
+            return attributes.getOrNull(varSeq);
+        }
+
+        /**
+         * Replaces the attributes of a variable, removing them if {@code null}.
+         */
+        Subst withAttributes(int varSeq, Attribute[] varAttributes) {
+            final IntMap<Attribute[]> newAttributes = varAttributes == null ?
+                    attributes.without(varSeq) : attributes.with(varSeq, varAttributes);
+            if (newAttributes == attributes) return this;
+            else return new Subst(map, newAttributes);
         }
 
         public int nextVarIndex() {
@@ -207,9 +263,18 @@ public class Logish {
 
     public static Object walkDeep(Object term0, Subst subst) {
         final Object term = walk(term0, subst);
-        if (term instanceof Cons) {
-            return ((Cons) term).mapTail(e -> walkDeep(e, subst));
-        } else return term;
+        if (!(term instanceof Cons)) return term;
+        // Tails are walked in a loop, since each one may be a variable bound to the next cell
+        final Cons first = (Cons) term;
+        final Cons.ListBuilder builder = Cons.builder();
+        Object current = walk(first.cdr, subst);
+        while (current instanceof Cons) {
+            final Cons cons = (Cons) current;
+            builder.append(walkDeep(cons.car, subst));
+            current = walk(cons.cdr, subst);
+        }
+        builder.setTail(current);
+        return new Cons(walkDeep(first.car, subst), builder.build());
     }
 
     public static abstract class Series<T> implements Iterable<T> {
@@ -234,6 +299,7 @@ public class Logish {
         }
 
         static class StreamIterator<T> implements Iterator<T> {
+            private final Cancellation cancellation = Cancellation.current();
             private Series<T> series;
 
             StreamIterator(Series<T> series) {
@@ -242,7 +308,10 @@ public class Logish {
 
             @Override
             public boolean hasNext() {
-                series = series.forceDeep();
+                while (series.isSuspension() || series.hasFuture()) {
+                    if (cancellation.isCancelled()) series = empty();
+                    else series = series.force();
+                }
                 return !series.isEmpty();
             }
 
@@ -285,6 +354,14 @@ public class Logish {
             return new FutureSeries<>(futureSeries);
         }
 
+        /**
+         * A series pulling its elements from an iterator.  Each step is memoized, so that the series can be forced
+         * more than once.
+         */
+        public static <T> Series<T> ofIterator(Iterator<T> iterator) {
+            return suspension(Lazy.of(() -> iterator.hasNext() ? cons(iterator.next(), ofIterator(iterator)) : empty()));
+        }
+
         public static <E> Series<E> appendInf(Series<E> s1, Series<E> s2) {
             if (s1.hasFuture()) {
                 if (s2.hasFuture()) {
@@ -312,23 +389,25 @@ public class Logish {
             } else if (series.isEmpty()) {
                 return series;
             } else {
-                return appendInf(goal.apply(series.head()), appendMapInf(goal, series.tail()));
+                // The rest is mapped when forced, so that a long series of answers does not nest calls
+                final Series<E> tail = series.tail();
+                final Series<E> rest = tail.isSuspension() || tail.hasFuture() || tail.isEmpty() ?
+                        appendMapInf(goal, tail) : suspension(() -> appendMapInf(goal, tail));
+                return appendInf(goal.apply(series.head()), rest);
             }
         }
 
         public static <E, T> Series<T> mapFilter(Function<E, T> function, Series<E> series) {
-            final Series<E> forced = series.forceDeep();
-
-            if (forced.isEmpty()) {
-                return Series.empty();
-            } else {
+            Series<E> forced = series.forceDeep();
+            while (!forced.isEmpty()) {
                 final T result = function.apply(forced.head());
-                if (result == null) {
-                    return mapFilter(function, forced.tail());
-                } else {
-                    return ConsSeries.cons(result, suspension(() -> mapFilter(function, forced.tail())));
+                if (result != null) {
+                    final Series<E> tail = forced.tail();
+                    return ConsSeries.cons(result, suspension(() -> mapFilter(function, tail)));
                 }
+                forced = forced.tail().forceDeep();
             }
+            return Series.empty();
         }
     }
 
@@ -506,18 +585,567 @@ public class Logish {
         }
     }
 
+    /**
+     * Cancellation of a query.
+     *
+     * <p>Every query pulled through {@link Answers} has one, which is current on the pulling thread, and which the
+     * parallel engines carry over to their workers.  Searches check it at each recursive step and stop once it is
+     * cancelled.  A cancellation also takes effect when its owner, the iterator of the query, has been garbage
+     * collected, so that the workers of an abandoned query do not run on forever.</p>
+     */
+    public static final class Cancellation {
+        private static final ThreadLocal<Cancellation> CURRENT = new ThreadLocal<>();
+        private static final Cancellation NONE = new Cancellation(null);
+
+        private final WeakReference<Object> owner;
+        private volatile boolean cancelled;
+
+        Cancellation(Object owner) {
+            this.owner = owner == null ? null : new WeakReference<>(owner);
+        }
+
+        /**
+         * Returns the cancellation of the query being evaluated on this thread, or one that is never cancelled.
+         */
+        static Cancellation current() {
+            final Cancellation current = CURRENT.get();
+            return current == null ? NONE : current;
+        }
+
+        public void cancel() {
+            if (this != NONE) cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            if (!cancelled && owner != null && owner.get() == null) cancelled = true;
+            return cancelled;
+        }
+
+        /**
+         * Gets the value of a supplier with this cancellation as the current one.
+         */
+        <T> T call(Supplier<T> supplier) {
+            final Cancellation previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                return supplier.get();
+            } finally {
+                if (previous == null) CURRENT.remove();
+                else CURRENT.set(previous);
+            }
+        }
+
+        /**
+         * Wraps a supplier to be run on another thread, so that it is evaluated under this cancellation.
+         */
+        <T> Supplier<T> bind(Supplier<T> supplier) {
+            return this == NONE ? supplier : () -> call(supplier);
+        }
+    }
+
+    /**
+     * How the answers to a query are searched for.
+     */
+    public enum SearchMode {
+        /**
+         * Disjunctions interleave their answers fairly, so that an infinite branch does not starve the others.
+         */
+        INTERLEAVING,
+        /**
+         * Depth-first search in Prolog order, with an explicit stack of choice points.
+         */
+        DFS,
+        /**
+         * Depth-first search as with {@link #DFS}, on mutable bindings that are undone on backtracking instead of a
+         * persistent substitution.  See {@link TrailSearch}.
+         */
+        TRAIL,
+        /**
+         * Or-parallel depth-first search on the common fork/join pool.  Idle workers steal the unexplored branches
+         * of disjunctions anywhere in the search tree, so answers come in no particular order.  As with
+         * {@link #DFS}, disjunctions are not interleaved fairly, and an infinite branch may starve the others.
+         */
+        PARALLEL
+    }
+
+    /**
+     * Depth-first evaluation of a goal.
+     *
+     * <p>The control goals (conjunction, disjunction, fresh variables, delayed goals, if-then-else, once, negation
+     * and element) are interpreted directly: a conjunction pushes its second goal onto the continuation, and a
+     * disjunction pushes its second goal onto the stack of choice points.  Any other goal is applied to the
+     * substitution, and the rest of its answers becomes a choice point.  Answers come in Prolog order, and an
+     * infinite branch keeps the search from ever reaching the next one.</p>
+     *
+     * <p>A search may be given a spawner, which is offered the alternatives of disjunctions and elements before
+     * they are pushed onto the stack.  {@link OrParallel} uses it to hand branches over to other workers.</p>
+     */
+    static class DepthFirst implements Iterator<Subst> {
+
+        /**
+         * A choice point: either a goal to try in a substitution, or the remaining answers of a goal.  Both are
+         * followed by the continuation.
+         */
+        static final class ChoicePoint {
+            final Goal goal;
+            final Subst subst;
+            final Iterator<Subst> answers;
+            final List<Goal> continuation;
+
+            ChoicePoint(Goal goal, Subst subst, Iterator<Subst> answers, List<Goal> continuation) {
+                this.goal = goal;
+                this.subst = subst;
+                this.answers = answers;
+                this.continuation = continuation;
+            }
+        }
+
+        private final ArrayDeque<ChoicePoint> choicePoints = new ArrayDeque<>();
+        private final Predicate<ChoicePoint> spawner;
+        private final Cancellation cancellation = Cancellation.current();
+        private Subst next;
+
+        DepthFirst(Goal goal, Subst subst) {
+            this(new ChoicePoint(goal, subst, null, List.empty()), null);
+        }
+
+        DepthFirst(ChoicePoint start, Predicate<ChoicePoint> spawner) {
+            this.spawner = spawner;
+            choicePoints.push(start);
+        }
+
+        private void alternative(ChoicePoint choicePoint) {
+            if (spawner == null || !spawner.test(choicePoint)) choicePoints.push(choicePoint);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) next = search();
+            return next != null;
+        }
+
+        @Override
+        public Subst next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final Subst result = next;
+            next = null;
+            return result;
+        }
+
+        private Subst search() {
+            while (!choicePoints.isEmpty()) {
+                if (cancellation.isCancelled()) return null;
+                final ChoicePoint cp = choicePoints.pop();
+                final Subst result;
+                if (cp.answers == null) {
+                    result = solve(cp.goal, cp.subst, cp.continuation);
+                } else if (cp.answers.hasNext()) {
+                    final Subst answer = cp.answers.next();
+                    choicePoints.push(cp);
+                    result = solve(Goal.Success.INSTANCE, answer, cp.continuation);
+                } else {
+                    continue;
+                }
+                if (result != null) return result;
+            }
+            return null;
+        }
+
+        /**
+         * Runs a goal followed by the continuation, down to the first answer or failure.
+         *
+         * @return the answer, or {@code null} on failure
+         */
+        private Subst solve(Goal goal, Subst subst, List<Goal> continuation) {
+            while (true) {
+                if (goal instanceof Goal.Success) {
+                    if (continuation.isEmpty()) return subst;
+                    goal = continuation.head();
+                    continuation = continuation.tail();
+                } else if (goal instanceof Goal.Failure) {
+                    return null;
+                } else if (goal instanceof Goal.Conj) {
+                    final Goal.Conj conj = (Goal.Conj) goal;
+                    continuation = continuation.prepend(conj.second);
+                    goal = conj.first;
+                } else if (goal instanceof Goal.Disj) {
+                    final Goal.Disj disj = (Goal.Disj) goal;
+                    alternative(new ChoicePoint(disj.second, subst, null, continuation));
+                    goal = disj.first;
+                } else if (goal instanceof Goal.ParDisj) {
+                    final Goal.ParDisj disj = (Goal.ParDisj) goal;
+                    alternative(new ChoicePoint(disj.second, subst, null, continuation));
+                    goal = disj.first;
+                } else if (goal instanceof Goal.Delayed) {
+                    if (cancellation.isCancelled()) return null;
+                    goal = ((Goal.Delayed) goal).supplier.get();
+                } else if (goal instanceof Goal.Fresh1) {
+                    final int nextVar = subst.nextVarIndex();
+                    final Var v1 = new Var(nextVar);
+                    goal = ((Goal.Fresh1) goal).body.apply(v1);
+                    subst = subst.put(nextVar, v1);
+                } else if (goal instanceof Goal.Fresh2) {
+                    final int nextVar = subst.nextVarIndex();
+                    final Var v1 = new Var(nextVar), v2 = new Var(nextVar + 1);
+                    goal = ((Goal.Fresh2) goal).body.apply(v1, v2);
+                    subst = subst.put(nextVar, v1).put(nextVar + 1, v2);
+                } else if (goal instanceof Goal.Fresh3) {
+                    final int nextVar = subst.nextVarIndex();
+                    final Var v1 = new Var(nextVar), v2 = new Var(nextVar + 1), v3 = new Var(nextVar + 2);
+                    goal = ((Goal.Fresh3) goal).body.apply(v1, v2, v3);
+                    subst = subst.put(nextVar, v1).put(nextVar + 1, v2).put(nextVar + 2, v3);
+                } else if (goal instanceof Goal.Element) {
+                    final Goal.Element element = (Goal.Element) goal;
+                    if (element.sequence.isEmpty()) return null;
+                    if (!element.sequence.tail().isEmpty()) {
+                        alternative(new ChoicePoint(new Goal.Element(element.x, element.sequence.tail()),
+                                subst, null, continuation));
+                    }
+                    goal = Goal.unify(element.x, element.sequence.head());
+                } else if (goal instanceof Goal.Ifte) {
+                    final Goal.Ifte ifte = (Goal.Ifte) goal;
+                    final DepthFirst question = new DepthFirst(ifte.question, subst);
+                    if (question.hasNext()) {
+                        continuation = continuation.prepend(ifte.thenBranch.get());
+                        subst = question.next();
+                        choicePoints.push(new ChoicePoint(null, null, question, continuation));
+                        goal = Goal.Success.INSTANCE;
+                    } else {
+                        goal = ifte.elseBranch.get();
+                    }
+                } else if (goal instanceof Goal.Once) {
+                    final DepthFirst inner = new DepthFirst(((Goal.Once) goal).goal, subst);
+                    if (!inner.hasNext()) return null;
+                    subst = inner.next();
+                    goal = Goal.Success.INSTANCE;
+                } else if (goal instanceof Goal.Not) {
+                    if (new DepthFirst(((Goal.Not) goal).goal, subst).hasNext()) return null;
+                    goal = Goal.Success.INSTANCE;
+                } else {
+                    final Series<Subst> answers = goal.apply(subst).forceDeep();
+                    if (answers.isEmpty()) return null;
+                    final Series<Subst> rest = answers.tail();
+                    if (!(rest instanceof EmptySeries)) {
+                        choicePoints.push(new ChoicePoint(null, null, rest.iterator(), continuation));
+                    }
+                    subst = answers.head();
+                    goal = Goal.Success.INSTANCE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Or-parallel evaluation of a goal on a fork/join pool or any other executor.
+     *
+     * <p>Each worker runs a {@link DepthFirst} search over its own branch.  When it meets an alternative while the
+     * pool is short of queued work, the alternative is forked as a new branch, which an idle worker may steal;
+     * otherwise it stays on the local stack.  Parallelism thus follows the shape of the whole search tree.  Answers
+     * are pushed onto a lock-free queue, from which the consumer pulls them.  Once {@link #CAPACITY} answers are
+     * waiting there, a worker parks its branch instead of searching on, and the consumer hands parked branches back
+     * to the executor as it takes answers, so that the search runs only a bounded distance ahead of demand.</p>
+     *
+     * <p>On an executor that is not a fork/join pool, such as one running each task on a virtual thread, there is
+     * no queue to look at, and alternatives are submitted as long as fewer than {@link #BRANCHES} branches are
+     * pending.</p>
+     */
+    static class OrParallel implements Iterator<Subst> {
+        /**
+         * Number of queued branches a worker may have before it stops forking new ones.
+         */
+        static final int SURPLUS = 2;
+
+        /**
+         * Number of pending branches above which no new ones are submitted to an executor.
+         */
+        static final int BRANCHES = 1024;
+
+        /**
+         * Number of answers not yet taken by the consumer above which workers park their branches.
+         */
+        static final int CAPACITY = 256;
+
+        final ConcurrentLinkedQueue<Subst> answers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger buffered = new AtomicInteger();
+        final ConcurrentLinkedQueue<Branch> parked = new ConcurrentLinkedQueue<>();
+        final Semaphore ready = new Semaphore(0);
+        final AtomicInteger pending = new AtomicInteger(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Cancellation cancellation = Cancellation.current();
+        final Executor executor;
+        private volatile CompletableFuture<Void> available = new CompletableFuture<>();
+        private Subst next;
+
+        OrParallel(Executor executor, Goal goal, Subst subst) {
+            this.executor = executor;
+            executor.execute(new Branch(new DepthFirst.ChoicePoint(goal, subst, null, List.empty())));
+        }
+
+        final class Branch implements Runnable {
+            final DepthFirst.ChoicePoint start;
+            private DepthFirst search;
+
+            Branch(DepthFirst.ChoicePoint start) {
+                this.start = start;
+            }
+
+            @Override
+            public void run() {
+                boolean parked = false;
+                try {
+                    parked = cancellation.call(this::search);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    // A parked branch is still pending: it resumes its search when run again
+                    if (!parked && pending.decrementAndGet() == 0) signal();
+                }
+            }
+
+            /**
+             * Searches the branch until it is exhausted, or until the consumer falls behind.
+             *
+             * @return whether the branch has been parked
+             */
+            private boolean search() {
+                if (search == null) search = new DepthFirst(start, OrParallel.this::spawn);
+                while (failure.get() == null && search.hasNext()) {
+                    buffered.incrementAndGet();
+                    answers.add(search.next());
+                    signal();
+                    if (buffered.get() >= CAPACITY) {
+                        parked.add(this);
+                        // The consumer may have taken answers before it could see this branch parked
+                        if (buffered.get() >= CAPACITY || !parked.remove(this)) return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        boolean spawn(DepthFirst.ChoicePoint choicePoint) {
+            // New branches would only add answers that the consumer is not taking
+            if (cancellation.isCancelled() || buffered.get() >= CAPACITY) return false;
+            if (executor instanceof ForkJoinPool) {
+                if (ForkJoinTask.getSurplusQueuedTaskCount() > SURPLUS) return false;
+                pending.incrementAndGet();
+                // A thread outside the pool, such as one helping it quiesce, would fork onto the common pool
+                if (ForkJoinTask.getPool() == executor) ForkJoinTask.adapt(new Branch(choicePoint)).fork();
+                else executor.execute(new Branch(choicePoint));
+            } else {
+                if (pending.get() >= BRANCHES) return false;
+                pending.incrementAndGet();
+                executor.execute(new Branch(choicePoint));
+            }
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                final boolean finished = pending.get() == 0;
+                next = answers.poll();
+                if (next != null) {
+                    if (buffered.decrementAndGet() < CAPACITY) resume();
+                } else {
+                    if (failure.get() != null) throw new RuntimeException(failure.get());
+                    if (finished) return false;
+                    await();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Subst next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final Subst result = next;
+            next = null;
+            return result;
+        }
+
+        private void resume() {
+            Branch branch;
+            while ((branch = parked.poll()) != null) executor.execute(branch);
+        }
+
+        private void signal() {
+            ready.release();
+            available.complete(null);
+        }
+
+        /**
+         * Returns a future completed once {@link #hasNext()} can return without waiting, that is once there is an
+         * answer or the search has ended.  It is to be called by the consumer only.
+         */
+        CompletableFuture<Void> available() {
+            CompletableFuture<Void> future = available;
+            if (future.isDone()) {
+                if (isReady()) return future;
+                future = available = new CompletableFuture<>();
+            }
+            // A worker that has signalled before seeing the new future has left something to be seen here
+            if (isReady()) future.complete(null);
+            return future;
+        }
+
+        private boolean isReady() {
+            return next != null || !answers.isEmpty() || pending.get() == 0 || failure.get() != null;
+        }
+
+        /**
+         * Waits for an answer or for the end of the search, compensating the pool if called from one of its
+         * workers.
+         */
+        private void await() {
+            try {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    @Override
+                    public boolean block() {
+                        ready.acquireUninterruptibly();
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return ready.tryAcquire();
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * The answers of an {@link OrParallel} engine.  Forcing the series waits for the next answer, unless
+     * {@link #whenReady()} is done, so that a consumer which must not block a thread can wait for it instead.
+     */
+    static final class ParallelSeries extends SuspendedSeries<Subst> {
+        final OrParallel engine;
+
+        ParallelSeries(OrParallel engine) {
+            super(Lazy.of(() -> engine.hasNext() ? cons(engine.next(), new ParallelSeries(engine)) : empty()));
+            this.engine = engine;
+        }
+
+        /**
+         * Returns whether forcing this series does not wait.  It is to be called by the consumer only.
+         */
+        boolean isReady() {
+            return ((Lazy<Series<Subst>>) suspension).isEvaluated() || engine.available().isDone();
+        }
+
+        /**
+         * Returns a future of this series, completed once forcing it does not wait.
+         */
+        CompletableFuture<Series<Subst>> whenReady() {
+            return engine.available().thenApply(ignored -> this);
+        }
+    }
+
+    static Iterable<Subst> solve(SearchMode mode, Goal goal, Subst subst) {
+        switch (mode) {
+            case DFS:
+                return () -> new DepthFirst(goal, subst);
+            case TRAIL:
+                return () -> new TrailSearch(goal, subst);
+            case PARALLEL:
+                return () -> new OrParallel(ForkJoinPool.commonPool(), goal, subst);
+            default:
+                return goal.apply(subst);
+        }
+    }
+
     public interface Constraint {
         Cons symbolicRepr();
     }
 
+    /**
+     * A domain of attributes, such as the domains of finite-domain variables.
+     *
+     * <p>Domains are registered once, and get dense integer ids, by which the attributes of a variable are
+     * indexed in a small array.  The attribute of a delegating domain takes over the validation of a value bound to
+     * its variable from all other attributes.</p>
+     */
+    public static final class AttributeDomain {
+        private static volatile AttributeDomain[] domains = new AttributeDomain[0];
+
+        final String name;
+        final int id;
+        final boolean delegating;
+
+        private AttributeDomain(String name, int id, boolean delegating) {
+            this.name = name;
+            this.id = id;
+            this.delegating = delegating;
+        }
+
+        /**
+         * Registers a domain, or returns the one registered under the same name.
+         *
+         * @throws IllegalArgumentException if the domain has already been registered as (not) delegating
+         */
+        public static synchronized AttributeDomain register(String name, boolean delegating) {
+            for (AttributeDomain domain : domains) {
+                if (!domain.name.equals(name)) continue;
+                if (domain.delegating != delegating) throw new IllegalArgumentException("registered differently: " + name);
+                return domain;
+            }
+            final AttributeDomain[] extended = Arrays.copyOf(domains, domains.length + 1);
+            extended[domains.length] = new AttributeDomain(name, domains.length, delegating);
+            domains = extended;
+            return extended[extended.length - 1];
+        }
+
+        static AttributeDomain of(int id) {
+            return domains[id];
+        }
+
+        /**
+         * Returns the domain registered under a name, or {@code null} if there is none.
+         */
+        public static AttributeDomain named(String name) {
+            for (AttributeDomain domain : domains) if (domain.name.equals(name)) return domain;
+            return null;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public boolean delegating() {
+            return delegating;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
     public interface Attribute {
         Option<Subst> validate(Var v, Object o, Subst subst);
 
-        boolean delegating();
-
         List<Constraint> constraints();
 
         Option<Tuple2<Option<Attribute>, Subst>> combine(Var v, Attribute other, Subst subst);
+
+        /**
+         * Whether this attribute takes over the validation of a value bound to its variable.
+         *
+         * @deprecated Whether an attribute is delegating is now a property of its {@link AttributeDomain}.  This is
+         * only read to register the domain of an attribute set by domain name.
+         */
+        @Deprecated
+        default boolean delegating() {
+            return false;
+        }
     }
 
     @SuppressWarnings("unused")
@@ -526,119 +1154,159 @@ public class Logish {
         return result.isEmpty() ? Option.none() : Option.of(result.head());
     }
 
-    public static Option<Attribute> getAttribute(Var v, Subst subst, String domain) {
+    public static Option<Attribute> getAttribute(Var v, Subst subst, AttributeDomain domain) {
         return getAttribute(v.index, subst, domain);
     }
 
-    public static Option<Attribute> getAttribute(int varSeq, Subst subst, String domain) {
-        final Option<Object> untypedMap = subst.get(-varSeq - 1);
-        if (untypedMap.isEmpty()) {
-            return Option.none();
-        } else {
-            //noinspection unchecked
-            return ((Map<String, Attribute>) untypedMap.get()).get(domain);
-        }
+    public static Option<Attribute> getAttribute(int varSeq, Subst subst, AttributeDomain domain) {
+        final Attribute[] attributes = subst.attributes(varSeq);
+        return attributes == null || domain.id >= attributes.length ? Option.none() : Option.of(attributes[domain.id]);
     }
 
     public static Subst setAttribute(Var v, Subst subst,
-                                     String domain, Attribute attribute) {
+                                     AttributeDomain domain, Attribute attribute) {
         return setAttribute(v.index, subst, domain, attribute);
     }
 
     public static Subst setAttribute(int varSeq, Subst subst,
-                                     String domain, Attribute attribute) {
-        final Option<Object> untypedMap = subst.get(-varSeq - 1);
-        if (untypedMap.isEmpty()) {
-            return subst.put(-varSeq - 1, HashMap.of(domain, attribute));
-        } else {
-            //noinspection unchecked
-            return subst.put(-varSeq - 1, ((Map<String, Attribute>) untypedMap.get()).put(domain, attribute));
-        }
+                                     AttributeDomain domain, Attribute attribute) {
+        return subst.withAttributes(varSeq, withAttribute(subst.attributes(varSeq), domain.id, attribute));
     }
 
     public static Subst removeAttribute(Var v, Subst subst,
-                                        String domain) {
+                                        AttributeDomain domain) {
         return removeAttribute(v.index, subst, domain);
     }
 
     public static Subst removeAttribute(int varSeq, Subst subst,
-                                        String domain) {
-        final Option<Object> untypedMap = subst.get(-varSeq - 1);
-        if (untypedMap.isEmpty()) {
-            return subst;
+                                        AttributeDomain domain) {
+        final Attribute[] attributes = subst.attributes(varSeq);
+        if (attributes == null || domain.id >= attributes.length || attributes[domain.id] == null) return subst;
+        return subst.withAttributes(varSeq, withAttribute(attributes, domain.id, null));
+    }
+
+    /**
+     * @deprecated Use {@link #getAttribute(Var, Subst, AttributeDomain)}.
+     */
+    @Deprecated
+    public static Option<Attribute> getAttribute(Var v, Subst subst, String domain) {
+        return getAttribute(v.index, subst, domain);
+    }
+
+    /**
+     * @deprecated Use {@link #getAttribute(int, Subst, AttributeDomain)}.
+     */
+    @Deprecated
+    public static Option<Attribute> getAttribute(int varSeq, Subst subst, String domain) {
+        final AttributeDomain registered = AttributeDomain.named(domain);
+        return registered == null ? Option.none() : getAttribute(varSeq, subst, registered);
+    }
+
+    /**
+     * @deprecated Use {@link #setAttribute(Var, Subst, AttributeDomain, Attribute)}.
+     */
+    @Deprecated
+    public static Subst setAttribute(Var v, Subst subst, String domain, Attribute attribute) {
+        return setAttribute(v.index, subst, domain, attribute);
+    }
+
+    /**
+     * Sets an attribute of a variable by the name of its domain, which is registered as delegating or not according
+     * to the attribute if it has not been registered yet.
+     *
+     * @deprecated Use {@link #setAttribute(int, Subst, AttributeDomain, Attribute)}.
+     */
+    @Deprecated
+    public static Subst setAttribute(int varSeq, Subst subst, String domain, Attribute attribute) {
+        final AttributeDomain registered = AttributeDomain.named(domain);
+        return setAttribute(varSeq, subst,
+                registered == null ? AttributeDomain.register(domain, attribute.delegating()) : registered, attribute);
+    }
+
+    /**
+     * @deprecated Use {@link #removeAttribute(Var, Subst, AttributeDomain)}.
+     */
+    @Deprecated
+    public static Subst removeAttribute(Var v, Subst subst, String domain) {
+        return removeAttribute(v.index, subst, domain);
+    }
+
+    /**
+     * @deprecated Use {@link #removeAttribute(int, Subst, AttributeDomain)}.
+     */
+    @Deprecated
+    public static Subst removeAttribute(int varSeq, Subst subst, String domain) {
+        final AttributeDomain registered = AttributeDomain.named(domain);
+        return registered == null ? subst : removeAttribute(varSeq, subst, registered);
+    }
+
+    /**
+     * Returns a copy of the attributes of a variable with one changed, or {@code null} if none is left.
+     */
+    static Attribute[] withAttribute(Attribute[] attributes, int id, Attribute attribute) {
+        final Attribute[] result;
+        if (attributes == null) {
+            if (attribute == null) return null;
+            result = new Attribute[id + 1];
         } else {
-            @SuppressWarnings("unchecked") final Map<String, Attribute> typedMap =
-                    (Map<String, Attribute>) untypedMap.get();
-            if (typedMap.containsKey(domain)) {
-                return subst.put(-varSeq - 1, typedMap.remove(domain));
-            } else {
-                return subst;
-            }
+            result = Arrays.copyOf(attributes, Math.max(attributes.length, id + 1));
+        }
+        result[id] = attribute;
+        if (attribute == null) {
+            for (Attribute a : result) if (a != null) return result;
+            return null;
         }
+        return result;
     }
 
     static Option<Subst> bind(Var v1, Var v2, Subst subst) {
         Subst bound = subst.put(v1.index, v2);
-        final Option<Object> optMap1 = subst.get(-v1.index - 1),
-                optMap2 = subst.get(-v2.index - 1);
-        if (!optMap1.isEmpty()) {
+        final Attribute[] attributes1 = subst.attributes(v1.index);
+        Attribute[] attributes2 = subst.attributes(v2.index);
+        if (attributes1 != null) {
             // v1 had some attributes
-            bound = bound.remove(-v1.index - 1); // remove them from the map
-            if (optMap2.isEmpty()) {
-                // v1 had no attributes: copy those from v1
-                bound = bound.put(-v2.index - 1, optMap1.get());
+            bound = bound.withAttributes(v1.index, null); // remove them from the map
+            if (attributes2 == null) {
+                // v2 had no attributes: copy those from v1
+                bound = bound.withAttributes(v2.index, attributes1);
             } else {
                 // Combine v1's attributes into v2's
-                @SuppressWarnings("unchecked") final Map<String, Attribute> map1 =
-                        (Map<String, Attribute>) optMap1.get();
-                @SuppressWarnings("unchecked") Map<String, Attribute> map2 =
-                        (Map<String, Attribute>) optMap2.get();
-                for (final Tuple2<String, Attribute> e1 : map1) {
-                    final String domain = e1._1;
-                    final Option<Attribute> a2 = map2.get(domain);
-                    if (a2.isEmpty()) {
+                for (int id = 0; id < attributes1.length; id++) {
+                    final Attribute a1 = attributes1[id];
+                    if (a1 == null) continue;
+                    final Attribute a2 = attributes2 != null && id < attributes2.length ? attributes2[id] : null;
+                    if (a2 == null) {
                         // Copy a1's attribute to a2
-                        map2 = map2.put(domain, e1._2);
+                        attributes2 = withAttribute(attributes2, id, a1);
                     } else {
                         // validate compatibility
-                        final Option<Tuple2<Option<Attribute>, Subst>> optCompat =
-                                a2.get().combine(v2, e1._2, bound);
+                        final Option<Tuple2<Option<Attribute>, Subst>> optCompat = a2.combine(v2, a1, bound);
                         if (optCompat.isEmpty()) return Option.none();
                         final Tuple2<Option<Attribute>, Subst> compat = optCompat.get();
-                        if (compat._1.isEmpty()) {
-                            map2 = map2.remove(domain);
-                        } else {
-                            map2 = map2.put(domain, compat._1.get());
-                        }
+                        attributes2 = withAttribute(attributes2, id, compat._1.getOrNull());
                         bound = compat._2;
                     }
                 }
-                bound = bound.put(-v2.index - 1, map2);
+                bound = bound.withAttributes(v2.index, attributes2);
             }
         }
         return Option.of(bound);
     }
 
     static Option<Subst> instantiate(Var v, Object o, Subst subst) {
-        final Option<Object> optMap = subst.get(-v.index - 1);
-        if (optMap.isEmpty()) {
-            return Option.of(subst.put(v.index, o));
-        } else {
-            @SuppressWarnings("unchecked") final Map<String, Attribute> map =
-                    (Map<String, Attribute>) optMap.get();
-            final Option<Attribute> optDelegating = map.valuesIterator().find(Attribute::delegating);
-            if (!optDelegating.isEmpty()) {
-                return optDelegating.get().validate(v, o, subst);
-            } else {
-                Subst inst = subst.put(v.index, o);
-                for (final Attribute a : map.valuesIterator()) {
-                    final Option<Subst> result = a.validate(v, o, inst);
-                    if (result.isEmpty()) return result;
-                    inst = result.get();
-                }
-                return Option.of(inst);
-            }
-        }
+        final Attribute[] attributes = subst.attributes(v.index);
+        if (attributes == null) return Option.of(subst.put(v.index, o));
+        for (int id = 0; id < attributes.length; id++) {
+            if (attributes[id] != null && AttributeDomain.of(id).delegating) return attributes[id].validate(v, o, subst);
+        }
+        Subst inst = subst.put(v.index, o);
+        for (final Attribute a : attributes) {
+            if (a == null) continue;
+            final Option<Subst> result = a.validate(v, o, inst);
+            if (result.isEmpty()) return result;
+            inst = result.get();
+        }
+        return Option.of(inst);
     }
 
     static Option<Subst> unify(Object left, Object right, Subst subst) {
@@ -696,25 +1364,104 @@ public class Logish {
     }
 
     public static Stream<Object> run(Function<Var, Goal> body) {
+        return run(SearchMode.INTERLEAVING, body);
+    }
+
+    public static Stream<Object> run(SearchMode mode, Function<Var, Goal> body) {
+        final Var q = new Var(0);
+        final Subst subst0 = Subst.empty().put(q.index, q);
+        return Stream.ofAll(io.vavr.collection.Iterator.ofAll(
+                new Answers<>(() -> solve(mode, body.apply(q), subst0).iterator(), subst -> walkDeep(q, subst))));
+    }
+
+    /**
+     * Answers pulled one at a time from the underlying series.  Unlike the stream returned by {@link #run}, nothing
+     * is memoized, so an answer can be collected as soon as the caller is done with it.
+     *
+     * <p>This is also the handle of the query: closing it cancels the query, which stops any work still going on in
+     * parallel branches, after which the iterator reports no more answers.  The query is cancelled as well once the
+     * iterator is garbage collected.</p>
+     */
+    public static class Answers<T> implements Iterator<T>, AutoCloseable {
+        private final Cancellation cancellation;
+        private final Function<Subst, T> reify;
+        private Iterator<Subst> source;
+
+        Answers(Supplier<Iterator<Subst>> source, Function<Subst, T> reify) {
+            this.cancellation = new Cancellation(this);
+            this.reify = reify;
+            this.source = cancellation.call(source);
+        }
+
+        public Cancellation cancellation() {
+            return cancellation;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (source == null || cancellation.isCancelled()) return false;
+            return cancellation.call(source::hasNext);
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return reify.apply(cancellation.call(source::next));
+        }
+
+        @Override
+        public void close() {
+            cancellation.cancel();
+            source = null;
+        }
+    }
+
+    public static Answers<Object> runIterator(Function<Var, Goal> body) {
+        return runIterator(SearchMode.INTERLEAVING, body);
+    }
+
+    public static Answers<Object> runIterator(SearchMode mode, Function<Var, Goal> body) {
         final Var q = new Var(0);
         final Subst subst0 = Subst.empty().put(q.index, q);
-        return Stream.ofAll(body.apply(q).apply(subst0)).map(subst -> walkDeep(q, subst));
+        return new Answers<>(() -> solve(mode, body.apply(q), subst0).iterator(), subst -> walkDeep(q, subst));
+    }
+
+    public static Spliterator<Object> runSpliterator(Function<Var, Goal> body) {
+        return runSpliterator(SearchMode.INTERLEAVING, body);
+    }
+
+    public static Spliterator<Object> runSpliterator(SearchMode mode, Function<Var, Goal> body) {
+        return Spliterators.spliteratorUnknownSize(runIterator(mode, body), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    public static java.util.stream.Stream<Object> runStream(Function<Var, Goal> body) {
+        return runStream(SearchMode.INTERLEAVING, body);
+    }
+
+    /**
+     * A sequential {@link java.util.stream.Stream} over the answers, with no memoization.  Closing the stream
+     * releases the underlying series.
+     */
+    public static java.util.stream.Stream<Object> runStream(SearchMode mode, Function<Var, Goal> body) {
+        final Answers<Object> answers = runIterator(mode, body);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(answers,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(answers::close);
     }
 
     static Tuple2<Map<String, List<Constraint>>, SortedSet<Integer>> augmentConstraints(int varSeq,
                                                                                         Subst subst,
                                                                                         Map<String, List<Constraint>> start) {
-        Option<Object> optAttributes = subst.get(-varSeq - 1);
-        if (optAttributes.isEmpty()) return Tuple.of(start, TreeSet.empty());
+        final Attribute[] attributes = subst.attributes(varSeq);
+        if (attributes == null) return Tuple.of(start, TreeSet.empty());
         Map<String, List<Constraint>> constraints = start;
         SortedSet<Integer> otherVars = TreeSet.empty();
-        //noinspection unchecked
-        for (final Tuple2<String, Attribute> entry : (Map<String, Attribute>) optAttributes.get()) {
-            final String domain = entry._1;
+        for (int id = 0; id < attributes.length; id++) {
+            if (attributes[id] == null) continue;
+            final String domain = AttributeDomain.of(id).name;
             final Option<List<Constraint>> seen = start.get(domain);
             List<Constraint> update = seen.isEmpty() ? null : seen.get();
             boolean updated = false;
-            for (final Constraint c : entry._2.constraints()) {
+            for (final Constraint c : attributes[id].constraints()) {
                 if (seen.isEmpty() || !seen.get().contains(c)) {
                     update = (update == null ? List.of(c) : update.prepend(c));
                     updated = true;
@@ -745,14 +1492,19 @@ public class Logish {
     }
 
     public static Stream<Tuple2<Object, List<Cons>>> runC(Function<Var, Goal> body) {
+        return runC(SearchMode.INTERLEAVING, body);
+    }
+
+    public static Stream<Tuple2<Object, List<Cons>>> runC(SearchMode mode, Function<Var, Goal> body) {
         final Var q = new Var(0);
         final Subst subst0 = Subst.empty().put(0, q);
-        return Stream.ofAll(body.apply(q).apply(subst0)).map(subst -> {
-            Object o = walkDeep(q, subst);
-            return Tuple.of(o, collectConstraints(o, subst).toList()
-                    .map(e -> e._2.map(c -> Cons.make(walkDeep(c.symbolicRepr(), subst), e._1)))
-                    .flatMap(Function.identity()));
-        });
+        return Stream.ofAll(io.vavr.collection.Iterator.ofAll(
+                new Answers<>(() -> solve(mode, body.apply(q), subst0).iterator(), subst -> {
+                    Object o = walkDeep(q, subst);
+                    return Tuple.of(o, collectConstraints(o, subst).toList()
+                            .map(e -> e._2.map(c -> Cons.make(walkDeep(c.symbolicRepr(), subst), e._1)))
+                            .flatMap(Function.identity()));
+                })));
     }
 
     @SuppressWarnings({"unused", "SuspiciousNameCombination"})
@@ -765,9 +1517,13 @@ public class Logish {
                 this.supplier = supplier;
             }
 
+            /**
+             * The goal is built and applied only when the result is forced.  Recursive relations thus return to
+             * the driver forcing the series at each level, instead of nesting calls.
+             */
             @Override
             public Series<Subst> apply(Subst subst) {
-                return supplier.get().apply(subst);
+                return Series.suspension(() -> supplier.get().apply(subst));
             }
         }
 
@@ -805,9 +1561,13 @@ public class Logish {
                 this.second = second;
             }
 
+            /**
+             * Applied lazily like {@link Delayed}, so that the depth of calls does not grow with the length of a
+             * chain of conjunctions.
+             */
             @Override
             public Series<Subst> apply(Subst subst) {
-                return Series.appendMapInf(second, first.apply(subst));
+                return Series.suspension(() -> Series.appendMapInf(second, first.apply(subst)));
             }
         }
 
@@ -835,12 +1595,14 @@ public class Logish {
                 this.second = second;
             }
 
+            /**
+             * The whole subtree below this disjunction is searched by an {@link OrParallel} engine, in which nested
+             * disjunctions are interpreted rather than applied, and so can be stolen by idle workers too.
+             */
             @Override
             public Series<Subst> apply(Subst subst) {
-                final CompletableFuture<Series<Subst>> secondFuture =
-                        (executor == null ? CompletableFuture.supplyAsync(() -> second.apply(subst))
-                                : CompletableFuture.supplyAsync(() -> second.apply(subst), executor));
-                return Series.appendInf(first.apply(subst), Series.future(secondFuture));
+                return new ParallelSeries(new OrParallel(
+                        executor == null ? Parallelism.defaultExecutor() : executor, this, subst));
             }
         }
 
@@ -873,6 +1635,18 @@ public class Logish {
             }
         }
 
+        public static Goal par(ForkJoinPool pool, Goal... goals) {
+            return par((Executor) pool, goals);
+        }
+
+        /**
+         * Or-parallel disjunction of goals, whose branches are run on the given executor, or on the
+         * {@linkplain Parallelism#defaultExecutor() default one} if {@code null}.
+         *
+         * <p>Each worker searches its branch depth-first, so disjunctions nested under {@code par}, such as those of
+         * {@link #choice}, lose the fairness of interleaving: within a worker, an infinite alternative starves the
+         * ones after it until another worker steals them.</p>
+         */
         public static Goal par(Executor executor, Goal... goals) {
             final int len = goals.length;
             if (len == 0) return Failure.INSTANCE;
@@ -886,7 +1660,7 @@ public class Logish {
         }
 
         public static Goal par(Goal... goals) {
-            return par(null, goals);
+            return par((Executor) null, goals);
         }
 
 
@@ -1565,5 +2339,53 @@ public class Logish {
             return new Element(x, seq);
         }
 
+        static class Tabled extends Goal {
+            final TableSpace tables;
+            final String name;
+            final Object args;
+            final Function<Object[], Goal> body;
+
+            Tabled(TableSpace tables, String name, Object args, Function<Object[], Goal> body) {
+                this.tables = tables;
+                this.name = name;
+                this.args = args;
+                this.body = body;
+            }
+
+            /**
+             * The answers of the variant of the call are looked up, or computed, when the result is forced, and
+             * then unified with the arguments one by one.
+             */
+            @Override
+            public Series<Subst> apply(Subst subst) {
+                return Series.suspension(() -> {
+                    final Object walked = walkDeep(args, subst);
+                    final List<Object> answers = tables.answers(name, TableSpace.variant(walked), this::evaluate);
+                    return Series.mapFilter(answer -> {
+                        final Tuple2<Object, Subst> instance = TableSpace.instance(answer, subst);
+                        return Logish.unify(walked, instance._1, instance._2).getOrNull();
+                    }, Series.ofIterator(answers.iterator()));
+                });
+            }
+
+            private Iterator<Object> evaluate(Object call) {
+                Subst subst0 = Subst.empty();
+                for (int index : varIndices(call)) subst0 = subst0.put(index, new Var(index));
+                final Object[] callArgs = List.ofAll(Cons.iterable(call)).toJavaArray();
+                return io.vavr.collection.Iterator.ofAll(body.apply(callArgs).apply(subst0))
+                        .map(subst -> TableSpace.variant(walkDeep(call, subst)));
+            }
+        }
+
+        /**
+         * A tabled call of a relation.  The body is applied to the arguments of the call, with their variables
+         * renamed apart, and its answers are stored in a table for each variant of the call.
+         *
+         * @see TableSpace
+         */
+        public static Goal tabled(TableSpace tables, String name, Object[] args, Function<Object[], Goal> body) {
+            return new Tabled(tables, name, Cons.fromIterable(List.of(args)), body);
+        }
+
     }
 }
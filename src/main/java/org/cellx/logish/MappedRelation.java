@@ -0,0 +1,284 @@
+package org.cellx.logish;
+
+import io.vavr.collection.Iterator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.TreeMap;
+
+import static org.cellx.logish.Logish.*;
+
+/**
+ * A read-only table of facts stored column by column in a file, which is memory-mapped rather than loaded.
+ *
+ * <p>Each column holds either integers or strings.  Strings are encoded as indices into a sorted dictionary, so
+ * that every column is an array of ints, in row order.  Each column also comes with a permutation of the rows that
+ * sorts it, on which a query binary-searches the range of rows with a given value.  Like {@link Relation}, a query
+ * then goes through the smallest range, compares the other ground arguments with the encoded values, and decodes
+ * only the rows that match.</p>
+ *
+ * <p>The file is written by {@link #write(Path, int, Iterable)} and opened by {@link #open(Path)}.  Opening it takes
+ * no time beyond mapping its sections, and the facts stay off the heap.</p>
+ *
+ * @implNote Each section of the file is mapped separately, so a single column or the dictionary may take at most
+ * 2GB.
+ */
+public final class MappedRelation implements Facts {
+
+    static final int MAGIC = 0x4C475348;
+    static final int VERSION = 1;
+    static final byte INT = 0, STRING = 1;
+
+    private final int arity;
+    private final int size;
+    private final byte[] types;
+    private final int dictionarySize;
+    private final IntBuffer dictionaryOffsets;
+    private final ByteBuffer dictionaryBytes;
+    private final IntBuffer[] values;
+    private final IntBuffer[] permutations;
+
+    private MappedRelation(FileChannel channel) throws IOException {
+        final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 20));
+        if (header.remaining() < 20 || header.getInt() != MAGIC) throw new IOException("not a fact file");
+        if (header.getInt() != VERSION) throw new IOException("unsupported fact file version");
+        arity = header.getInt();
+        size = header.getInt();
+        dictionarySize = header.getInt();
+        final ByteBuffer sections = channel.map(FileChannel.MapMode.READ_ONLY, 20, arity + 24 + 16L * arity);
+        types = new byte[arity];
+        sections.get(types);
+        dictionaryOffsets = map(channel, sections.getLong(), 4L * (dictionarySize + 1)).asIntBuffer();
+        final long bytesPosition = sections.getLong();
+        dictionaryBytes = map(channel, bytesPosition, sections.getLong());
+        values = new IntBuffer[arity];
+        permutations = new IntBuffer[arity];
+        for (int column = 0; column < arity; column++) {
+            values[column] = map(channel, sections.getLong(), 4L * size).asIntBuffer();
+            permutations[column] = map(channel, sections.getLong(), 4L * size).asIntBuffer();
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    /**
+     * Opens a file written by {@link #write}.  The file may be closed by the caller afterwards, but must not be
+     * changed while the relation is in use.
+     */
+    public static MappedRelation open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MappedRelation(channel);
+        }
+    }
+
+    /**
+     * Writes rows of integers and strings to a file.  A column holds either integers or strings, but not both.
+     *
+     * @throws IllegalArgumentException if a row has the wrong length, or a value of the wrong type
+     */
+    public static void write(Path path, int arity, Iterable<Object[]> rows) throws IOException {
+        final ArrayList<Object[]> table = new ArrayList<>();
+        final byte[] types = new byte[arity];
+        final boolean[] typed = new boolean[arity];
+        final TreeMap<String, Integer> dictionary = new TreeMap<>();
+        for (Object[] row : rows) {
+            if (row.length != arity) throw new IllegalArgumentException("expected " + arity + " values: " + row.length);
+            for (int column = 0; column < arity; column++) {
+                final byte type;
+                if (row[column] instanceof Integer) type = INT;
+                else if (row[column] instanceof String) type = STRING;
+                else throw new IllegalArgumentException("neither an integer nor a string: " + row[column]);
+                if (!typed[column]) {
+                    types[column] = type;
+                    typed[column] = true;
+                } else if (types[column] != type) {
+                    throw new IllegalArgumentException("mixed types in column " + column);
+                }
+                if (type == STRING) dictionary.put((String) row[column], 0);
+            }
+            table.add(row);
+        }
+        // Dictionary indices follow the order of strings, so that encoded columns sort like decoded ones
+        final ArrayList<byte[]> strings = new ArrayList<>();
+        for (java.util.Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+            entry.setValue(strings.size());
+            strings.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+        }
+        final int size = table.size();
+        final int[][] columns = new int[arity][size];
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < arity; column++) {
+                final Object value = table.get(row)[column];
+                columns[column][row] = types[column] == INT ? (Integer) value : dictionary.get((String) value);
+            }
+        }
+
+        long position = 20 + arity + 24 + 16L * arity;
+        final long offsetsPosition = position;
+        position += 4L * (strings.size() + 1);
+        final long bytesPosition = position;
+        long bytesLength = 0;
+        for (byte[] string : strings) bytesLength += string.length;
+        position += bytesLength;
+        try (OutputStream file = Files.newOutputStream(path);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(arity);
+            out.writeInt(size);
+            out.writeInt(strings.size());
+            out.write(types);
+            out.writeLong(offsetsPosition);
+            out.writeLong(bytesPosition);
+            out.writeLong(bytesLength);
+            for (int column = 0; column < arity; column++) {
+                out.writeLong(position);
+                out.writeLong(position + 4L * size);
+                position += 8L * size;
+            }
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] string : strings) {
+                offset += string.length;
+                out.writeInt(offset);
+            }
+            for (byte[] string : strings) out.write(string);
+            for (int column = 0; column < arity; column++) {
+                final int[] encoded = columns[column];
+                for (int value : encoded) out.writeInt(value);
+                final Integer[] permutation = new Integer[size];
+                for (int row = 0; row < size; row++) permutation[row] = row;
+                Arrays.sort(permutation, Comparator.comparingInt(row -> encoded[row]));
+                for (int row : permutation) out.writeInt(row);
+            }
+        }
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    String string(int index) {
+        final int from = dictionaryOffsets.get(index), to = dictionaryOffsets.get(index + 1);
+        final byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = dictionaryBytes.get(from + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the dictionary index of a string, or -1 if it is not in the dictionary.
+     */
+    int stringIndex(String string) {
+        int low = 0, high = dictionarySize - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = string(middle).compareTo(string);
+            if (comparison < 0) low = middle + 1;
+            else if (comparison > 0) high = middle - 1;
+            else return middle;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the encoded value of a term in a column, or {@code null} if no row can have it.
+     */
+    Integer encode(int column, Object term) {
+        if (types[column] == INT) return term instanceof Integer ? (Integer) term : null;
+        if (!(term instanceof String)) return null;
+        final int index = stringIndex((String) term);
+        return index < 0 ? null : index;
+    }
+
+    Object decode(int column, int row) {
+        final int value = values[column].get(row);
+        return types[column] == INT ? (Integer) value : string(value);
+    }
+
+    /**
+     * Returns the first position in the permutation of a column at which the value is not less than the given one.
+     */
+    private int lowerBound(int column, long value) {
+        final IntBuffer permutation = permutations[column], encoded = values[column];
+        int low = 0, high = size;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (encoded.get(permutation.get(middle)) < value) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    @Override
+    public Goal query(Object... args) {
+        if (args.length != arity) throw new IllegalArgumentException("expected " + arity + " arguments: " + args.length);
+        return new Query(args.clone());
+    }
+
+    final class Query extends Goal {
+        final Object[] args;
+
+        Query(Object[] args) {
+            this.args = args;
+        }
+
+        @Override
+        public Series<Subst> apply(Subst subst) {
+            final int[] bound = new int[arity];
+            final boolean[] isBound = new boolean[arity];
+            int selected = -1, from = 0, to = size;
+            for (int column = 0; column < arity; column++) {
+                final Object value = walkDeep(args[column], subst);
+                if (!varIndices(value).isEmpty()) continue;
+                final Integer encoded = encode(column, value);
+                if (encoded == null) return Series.empty();
+                bound[column] = encoded;
+                isBound[column] = true;
+                final int low = lowerBound(column, encoded), high = lowerBound(column, encoded + 1L);
+                if (low == high) return Series.empty();
+                if (selected < 0 || high - low < to - from) {
+                    selected = column;
+                    from = low;
+                    to = high;
+                }
+            }
+            final IntBuffer permutation = selected < 0 ? null : permutations[selected];
+            final Iterator<Integer> candidates = Iterator.range(from, to)
+                    .map(i -> permutation == null ? i : permutation.get(i))
+                    .filter(row -> {
+                        for (int column = 0; column < arity; column++) {
+                            if (isBound[column] && values[column].get(row) != bound[column]) return false;
+                        }
+                        return true;
+                    });
+            return Series.mapFilter(row -> {
+                Subst current = subst;
+                for (int column = 0; column < arity && current != null; column++) {
+                    if (isBound[column]) continue;
+                    current = Logish.unify(args[column], decode(column, row), current).getOrNull();
+                }
+                return current;
+            }, Series.ofIterator(candidates));
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.cellx.logish;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Defaults for or-parallel search.
+ *
+ * @implNote The artifact is a multi-release jar.  This is the version for Java 8 to 20, which runs branches on the
+ * common fork/join pool; the one for Java 21 and later runs each branch on a virtual thread.
+ */
+public final class Parallelism {
+
+    private Parallelism() {
+    }
+
+    /**
+     * Returns the executor on which {@link Logish.Goal#par(Logish.Goal...)} runs its branches.
+     */
+    public static Executor defaultExecutor() {
+        return ForkJoinPool.commonPool();
+    }
+}
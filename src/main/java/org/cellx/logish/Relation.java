@@ -0,0 +1,132 @@
+package org.cellx.logish;
+
+import io.vavr.collection.Iterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.cellx.logish.Logish.*;
+
+/**
+ * A relation given by a set of tuples of ground terms, that is, a table of facts.
+ *
+ * <p>A query walks its arguments, and looks up each one that is ground in a hash index on its column.  Only the
+ * rows of the smallest matching bucket are then unified with the arguments.  The index on a column is built when a
+ * query first needs it, and kept up to date as rows are added.</p>
+ *
+ * @implNote Adding rows is not safe while the relation is being queried on other threads.
+ */
+public final class Relation implements Facts {
+
+    /**
+     * Positions of the rows with the same value in a column.
+     */
+    static final class Bucket {
+        int[] rows = new int[2];
+        int size;
+
+        void add(int row) {
+            if (size == rows.length) rows = Arrays.copyOf(rows, size * 2);
+            rows[size++] = row;
+        }
+    }
+
+    private final int arity;
+    private final ArrayList<Object[]> rows = new ArrayList<>();
+    private final HashMap<Object, Bucket>[] indexes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Relation(int arity) {
+        this.arity = arity;
+        this.indexes = new HashMap[arity];
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public synchronized int size() {
+        return rows.size();
+    }
+
+    /**
+     * Adds a row.
+     *
+     * @throws IllegalArgumentException if the row has the wrong length, or is not ground
+     */
+    public synchronized Relation add(Object... row) {
+        if (row.length != arity) throw new IllegalArgumentException("expected " + arity + " values: " + row.length);
+        for (Object value : row) {
+            if (!varIndices(value).isEmpty()) throw new IllegalArgumentException("not ground: " + value);
+        }
+        final Object[] copy = row.clone();
+        final int position = rows.size();
+        rows.add(copy);
+        for (int column = 0; column < arity; column++) {
+            if (indexes[column] != null) indexes[column].computeIfAbsent(copy[column], v -> new Bucket()).add(position);
+        }
+        return this;
+    }
+
+    public Relation addAll(Iterable<Object[]> rows) {
+        for (Object[] row : rows) add(row);
+        return this;
+    }
+
+    synchronized HashMap<Object, Bucket> index(int column) {
+        HashMap<Object, Bucket> index = indexes[column];
+        if (index == null) {
+            index = new HashMap<>();
+            for (int i = 0; i < rows.size(); i++) index.computeIfAbsent(rows.get(i)[column], v -> new Bucket()).add(i);
+            indexes[column] = index;
+        }
+        return index;
+    }
+
+    synchronized Object[] row(int position) {
+        return rows.get(position);
+    }
+
+    @Override
+    public Goal query(Object... args) {
+        if (args.length != arity) throw new IllegalArgumentException("expected " + arity + " arguments: " + args.length);
+        return new Query(args.clone());
+    }
+
+    final class Query extends Goal {
+        final Object[] args;
+
+        Query(Object[] args) {
+            this.args = args;
+        }
+
+        @Override
+        public Series<Subst> apply(Subst subst) {
+            Bucket selected = null;
+            for (int column = 0; column < arity; column++) {
+                final Object value = walkDeep(args[column], subst);
+                if (!varIndices(value).isEmpty()) continue;
+                final Bucket bucket = index(column).get(value);
+                if (bucket == null) return Series.empty();
+                if (selected == null || bucket.size < selected.size) selected = bucket;
+            }
+            final Iterator<Object[]> candidates;
+            if (selected == null) {
+                candidates = Iterator.range(0, size()).map(Relation.this::row);
+            } else {
+                final Bucket bucket = selected;
+                candidates = Iterator.range(0, bucket.size).map(i -> row(bucket.rows[i]));
+            }
+            return Series.mapFilter(row -> {
+                Subst current = subst;
+                for (int column = 0; column < arity && current != null; column++) {
+                    current = Logish.unify(args[column], row[column], current).getOrNull();
+                }
+                return current;
+            }, Series.ofIterator(candidates));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.cellx.logish;
+
+import io.vavr.Tuple;
+import io.vavr.Tuple2;
+import io.vavr.collection.List;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Answer tables of tabled relations.
+ *
+ * <p>A table is kept for each call of a relation up to renaming of variables.  The first call of a variant evaluates
+ * the relation in full, and later calls just read its answers.  A call of a variant that is still being evaluated
+ * gets the answers found so far, and the evaluation is then repeated until it finds no new answers.  Left-recursive
+ * relations thus terminate, as long as they have finitely many answers.  This is linear tabling: instead of
+ * suspending consumers until new answers arrive, as SLG resolution does, looping calls are re-evaluated to a
+ * fixpoint.</p>
+ *
+ * <p>A table space may be created for a single query, or shared among queries, in which case complete tables are
+ * reused.  At most {@code capacity} tables are kept, and the least recently used ones are evicted first.</p>
+ *
+ * @implNote Answers are stored as terms, without the constraints on their variables.  A table space is locked while
+ * a table is evaluated, so tabled relations should not fork parallel branches that call back into the same space.
+ */
+public final class TableSpace {
+
+    static final class Table {
+        final LinkedHashSet<Object> answers = new LinkedHashSet<>();
+        boolean complete;
+        boolean looped;
+        int leader;
+    }
+
+    private final LinkedHashMap<Tuple2<String, Object>, Table> tables;
+    private final ArrayList<Table> stack = new ArrayList<>();
+    private long added;
+
+    public TableSpace() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public TableSpace(int capacity) {
+        this.tables = new LinkedHashMap<Tuple2<String, Object>, Table>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Tuple2<String, Object>, Table> eldest) {
+                return size() > capacity && !stack.contains(eldest.getValue());
+            }
+        };
+    }
+
+    /**
+     * Returns the number of tables.
+     */
+    public synchronized int size() {
+        return tables.size();
+    }
+
+    /**
+     * Removes all tables, unless some are being evaluated.
+     */
+    public synchronized void clear() {
+        if (stack.isEmpty()) tables.clear();
+    }
+
+    /**
+     * Returns the answers to a call, evaluating it first if its table is not complete.
+     *
+     * @param name     the name of the relation
+     * @param call     the arguments, with variables renamed to {@code _0}, {@code _1}, ... in order of occurrence
+     * @param evaluate evaluates the call, returning its answers as instances of the arguments
+     * @return the answers, as instances of the arguments with variables renamed like in the call
+     */
+    synchronized List<Object> answers(String name, Object call, Function<Object, Iterator<Object>> evaluate) {
+        final Tuple2<String, Object> key = Tuple.of(name, call);
+        Table table = tables.get(key);
+        if (table == null) {
+            table = new Table();
+            tables.put(key, table);
+        }
+        if (table.complete) return List.ofAll(table.answers);
+        final int position = stack.indexOf(table);
+        if (position >= 0) {
+            // A looping call: the tables evaluated above this one are not complete until it is
+            for (int i = position + 1; i < stack.size(); i++) {
+                final Table dependent = stack.get(i);
+                dependent.leader = Math.min(dependent.leader, position);
+            }
+            table.looped = true;
+            return List.ofAll(table.answers);
+        }
+        final int depth = stack.size();
+        stack.add(table);
+        table.leader = depth;
+        try {
+            long before;
+            do {
+                table.looped = false;
+                before = added;
+                final Iterator<Object> answers = evaluate.apply(call);
+                while (answers.hasNext()) {
+                    if (table.answers.add(answers.next())) added++;
+                }
+            } while (table.looped && added != before);
+        } finally {
+            stack.remove(depth);
+        }
+        if (table.leader == depth && !Logish.Cancellation.current().isCancelled()) table.complete = true;
+        return List.ofAll(table.answers);
+    }
+
+    /**
+     * Returns the variant of a term whose variables are renamed to {@code _0}, {@code _1}, ... in order of occurrence,
+     * under which its table is kept.
+     */
+    static Object variant(Object term) {
+        return rename(term, new HashMap<>(), 0);
+    }
+
+    /**
+     * Returns an answer with its variables renamed apart from those of a substitution, and the substitution extended
+     * with these variables.
+     */
+    static Tuple2<Object, Logish.Subst> instance(Object answer, Logish.Subst subst) {
+        final Map<Logish.Var, Logish.Var> renaming = new HashMap<>();
+        final Object instance = rename(answer, renaming, subst.nextVarIndex());
+        for (Logish.Var v : renaming.values()) subst = subst.put(v.index, v);
+        return Tuple.of(instance, subst);
+    }
+
+    /**
+     * Renames the variables of a term to consecutive indices from {@code base}, in order of occurrence.
+     */
+    private static Object rename(Object term, Map<Logish.Var, Logish.Var> renaming, int base) {
+        if (term instanceof Logish.Var) {
+            return renaming.computeIfAbsent((Logish.Var) term, v -> new Logish.Var(base + renaming.size()));
+        }
+        if (term instanceof Cons) return ((Cons) term).mapTail(t -> rename(t, renaming, base));
+        return term;
+    }
+}
@@ -0,0 +1,372 @@
+package org.cellx.logish;
+
+import io.vavr.collection.List;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+import static org.cellx.logish.Logish.*;
+
+/**
+ * Depth-first evaluation of a goal on mutable bindings, in the style of the WAM.
+ *
+ * <p>Variables are cells in a growable array, which holds the same values as a {@link Subst}: a variable is
+ * unbound when its cell holds the variable itself.  Every change is recorded on a trail, and backtracking to a
+ * choice point undoes the changes made since it was created, instead of going back to an older persistent
+ * substitution.  Control goals are interpreted as in {@link DepthFirst}, and unification works directly on the
+ * cells, so answers come in the same order, and are the same, as with {@link SearchMode#DFS}.</p>
+ *
+ * <p>Chains of variables bound to variables are compressed as they are walked, so that walking a variable that
+ * has been aliased many times becomes effectively constant.  Variables are still bound newer to older, rather than
+ * by rank, so that unbound variables in the answers are the same as with {@link SearchMode#DFS}.</p>
+ *
+ * <p>Any other goal, and unification once some variable has attributes, is applied to a substitution copied out of
+ * the cells, and its answers are copied back in.  This keeps constraints working, but costs time in the number of
+ * variables, so the engine pays off on relations made mostly of unification.</p>
+ */
+final class TrailSearch implements Iterator<Subst> {
+
+    /**
+     * The bindings, with the trail of their changes.
+     */
+    static final class Store {
+        private static final int SIZE = -1, ATTRIBUTES = -2;
+
+        private Object[] cells = new Object[16];
+        private int size;
+        private IntMap<Attribute[]> attributes = Subst.emptyMap(Subst.TRIE);
+        private int[] trailKeys = new int[16];
+        private Object[] trailValues = new Object[16];
+        private int top;
+        private Subst copy;
+        private int copyTop = -1;
+
+        Store(Subst subst) {
+            load(subst);
+            top = 0;
+            copyTop = 0;
+        }
+
+        Object get(int key) {
+            return key < size ? cells[key] : null;
+        }
+
+        void set(int key, Object value) {
+            if (key >= size) {
+                trail(SIZE, size);
+                if (key >= cells.length) cells = Arrays.copyOf(cells, Math.max(key + 1, cells.length * 2));
+                size = key + 1;
+            }
+            trail(key, cells[key]);
+            cells[key] = value;
+        }
+
+        void setAttributes(IntMap<Attribute[]> attributes) {
+            trail(ATTRIBUTES, this.attributes);
+            this.attributes = attributes;
+        }
+
+        private void trail(int key, Object previous) {
+            if (top == trailKeys.length) {
+                trailKeys = Arrays.copyOf(trailKeys, top * 2);
+                trailValues = Arrays.copyOf(trailValues, top * 2);
+            }
+            trailKeys[top] = key;
+            trailValues[top] = previous;
+            top++;
+        }
+
+        int mark() {
+            return top;
+        }
+
+        @SuppressWarnings("unchecked")
+        void undo(int mark) {
+            while (top > mark) {
+                top--;
+                final int key = trailKeys[top];
+                final Object previous = trailValues[top];
+                trailValues[top] = null;
+                if (key == SIZE) {
+                    final int previousSize = (Integer) previous;
+                    Arrays.fill(cells, previousSize, size, null);
+                    size = previousSize;
+                } else if (key == ATTRIBUTES) {
+                    attributes = (IntMap<Attribute[]>) previous;
+                } else {
+                    cells[key] = previous;
+                }
+            }
+            copyTop = -1;
+        }
+
+        boolean hasAttributes() {
+            return !attributes.isEmpty();
+        }
+
+        Var newVar() {
+            final Var v = new Var(size);
+            set(size, v);
+            return v;
+        }
+
+        /**
+         * Returns the bindings as a substitution, reusing the previous copy while nothing has changed.
+         */
+        Subst toSubst() {
+            if (copyTop != top || copy == null) {
+                IntMap<Object> map = Subst.emptyMap(Subst.TRIE);
+                for (int i = 0; i < size; i++) map = map.with(i, cells[i]);
+                copy = new Subst(map, attributes);
+                copyTop = top;
+            }
+            return copy;
+        }
+
+        /**
+         * Changes the bindings to those of a substitution, which extends them.
+         */
+        void load(Subst subst) {
+            for (IntMap.Entry<Object> e : subst.map) {
+                if (get(e.getKey()) != e.getValue()) set(e.getKey(), e.getValue());
+            }
+            if (subst.attributes != attributes) setAttributes(subst.attributes);
+            copy = subst;
+            copyTop = top;
+        }
+
+        /**
+         * Walks a term, and compresses the chain of variables it went through: each one but the last is rebound
+         * to the end of the chain.  The changes are trailed like bindings, so they are undone on backtracking.
+         */
+        Object walk(Object term) {
+            Object end = term;
+            int steps = 0;
+            while (end instanceof Var) {
+                final Object o = cells[((Var) end).index];
+                if (o == end) break;
+                end = o;
+                steps++;
+            }
+            if (steps > 1) {
+                Var v = (Var) term;
+                Object next = cells[v.index];
+                while (next != end) {
+                    set(v.index, end);
+                    v = (Var) next;
+                    next = cells[v.index];
+                }
+            }
+            return end;
+        }
+
+        boolean occurs(Var v, Object term) {
+            final Object walked = walk(term);
+            if (v.equals(walked)) return true;
+            return exists(walked, e -> occurs(v, e));
+        }
+
+        /**
+         * Unifies two terms, binding the newer of two variables to the older one, as {@link Logish#unify} does.
+         * Changes made before a failure are left to be undone by the caller.
+         */
+        boolean unify(Object left, Object right) {
+            while (true) {
+                left = walk(left);
+                right = walk(right);
+                if (left == right) return true;
+                if (left instanceof Var) {
+                    final Var leftVar = (Var) left;
+                    if (right instanceof Var) {
+                        final Var rightVar = (Var) right;
+                        if (leftVar.index < rightVar.index) set(rightVar.index, leftVar);
+                        else if (leftVar.index > rightVar.index) set(leftVar.index, rightVar);
+                        return true;
+                    }
+                    if (occurs(leftVar, right)) return false;
+                    set(leftVar.index, right);
+                    return true;
+                } else if (right instanceof Var) {
+                    final Var rightVar = (Var) right;
+                    if (occurs(rightVar, left)) return false;
+                    set(rightVar.index, left);
+                    return true;
+                } else if (left instanceof Cons && right instanceof Cons) {
+                    final Cons leftCons = (Cons) left, rightCons = (Cons) right;
+                    if (!unify(leftCons.car, rightCons.car)) return false;
+                    left = leftCons.cdr;
+                    right = rightCons.cdr;
+                } else {
+                    return !(left instanceof Cons) && !(right instanceof Cons) && Objects.equals(left, right);
+                }
+            }
+        }
+    }
+
+    /**
+     * A choice point: a goal to try, the remaining answers of a goal, or the remaining answers of the question of an
+     * if-then-else, each followed by the continuation.  Backtracking to it first undoes the trail to its mark.
+     */
+    static final class ChoicePoint {
+        final Goal goal;
+        final Iterator<Subst> answers;
+        final TrailSearch question;
+        final List<Goal> continuation;
+        final int mark;
+
+        ChoicePoint(Goal goal, Iterator<Subst> answers, TrailSearch question, List<Goal> continuation, int mark) {
+            this.goal = goal;
+            this.answers = answers;
+            this.question = question;
+            this.continuation = continuation;
+            this.mark = mark;
+        }
+    }
+
+    private final Store store;
+    private final ArrayDeque<ChoicePoint> choicePoints = new ArrayDeque<>();
+    private final Cancellation cancellation = Cancellation.current();
+    private Boolean ready;
+
+    TrailSearch(Goal goal, Subst subst) {
+        this(new Store(subst), goal);
+    }
+
+    private TrailSearch(Store store, Goal goal) {
+        this.store = store;
+        choicePoints.push(new ChoicePoint(goal, null, null, List.empty(), store.mark()));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (ready == null) ready = advance();
+        return ready;
+    }
+
+    @Override
+    public Subst next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        ready = null;
+        return store.toSubst();
+    }
+
+    /**
+     * Moves the bindings on to the next answer.
+     *
+     * @return {@code false} if there are no more answers
+     */
+    boolean advance() {
+        while (!choicePoints.isEmpty()) {
+            if (cancellation.isCancelled()) return false;
+            final ChoicePoint cp = choicePoints.pop();
+            // The question of an if-then-else undoes the trail to its own choice points
+            if (cp.question == null) store.undo(cp.mark);
+            final boolean found;
+            if (cp.goal != null) {
+                found = solve(cp.goal, cp.continuation);
+            } else if (cp.answers != null) {
+                if (!cp.answers.hasNext()) continue;
+                final Subst answer = cp.answers.next();
+                choicePoints.push(cp);
+                store.load(answer);
+                found = solve(Goal.Success.INSTANCE, cp.continuation);
+            } else {
+                if (!cp.question.advance()) continue;
+                choicePoints.push(cp);
+                found = solve(Goal.Success.INSTANCE, cp.continuation);
+            }
+            if (found) return true;
+        }
+        return false;
+    }
+
+    private void alternative(Goal goal, List<Goal> continuation) {
+        choicePoints.push(new ChoicePoint(goal, null, null, continuation, store.mark()));
+    }
+
+    /**
+     * Runs a goal followed by the continuation, down to the first answer or failure.
+     */
+    private boolean solve(Goal goal, List<Goal> continuation) {
+        while (true) {
+            if (goal instanceof Goal.Success) {
+                if (continuation.isEmpty()) return true;
+                goal = continuation.head();
+                continuation = continuation.tail();
+            } else if (goal instanceof Goal.Failure) {
+                return false;
+            } else if (goal instanceof Goal.Conj) {
+                final Goal.Conj conj = (Goal.Conj) goal;
+                continuation = continuation.prepend(conj.second);
+                goal = conj.first;
+            } else if (goal instanceof Goal.Disj) {
+                final Goal.Disj disj = (Goal.Disj) goal;
+                alternative(disj.second, continuation);
+                goal = disj.first;
+            } else if (goal instanceof Goal.ParDisj) {
+                final Goal.ParDisj disj = (Goal.ParDisj) goal;
+                alternative(disj.second, continuation);
+                goal = disj.first;
+            } else if (goal instanceof Goal.Delayed) {
+                if (cancellation.isCancelled()) return false;
+                goal = ((Goal.Delayed) goal).supplier.get();
+            } else if (goal instanceof Goal.Fresh1) {
+                goal = ((Goal.Fresh1) goal).body.apply(store.newVar());
+            } else if (goal instanceof Goal.Fresh2) {
+                final Var v1 = store.newVar(), v2 = store.newVar();
+                goal = ((Goal.Fresh2) goal).body.apply(v1, v2);
+            } else if (goal instanceof Goal.Fresh3) {
+                final Var v1 = store.newVar(), v2 = store.newVar(), v3 = store.newVar();
+                goal = ((Goal.Fresh3) goal).body.apply(v1, v2, v3);
+            } else if (goal instanceof Goal.Unify && !store.hasAttributes()) {
+                final Goal.Unify unify = (Goal.Unify) goal;
+                if (!store.unify(unify.left, unify.right)) return false;
+                goal = Goal.Success.INSTANCE;
+            } else if (goal instanceof Goal.Element) {
+                final Goal.Element element = (Goal.Element) goal;
+                if (element.sequence.isEmpty()) return false;
+                if (!element.sequence.tail().isEmpty()) {
+                    alternative(new Goal.Element(element.x, element.sequence.tail()), continuation);
+                }
+                goal = Goal.unify(element.x, element.sequence.head());
+            } else if (goal instanceof Goal.Ifte) {
+                final Goal.Ifte ifte = (Goal.Ifte) goal;
+                final int mark = store.mark();
+                final TrailSearch question = new TrailSearch(store, ifte.question);
+                if (question.advance()) {
+                    continuation = continuation.prepend(ifte.thenBranch.get());
+                    choicePoints.push(new ChoicePoint(null, null, question, continuation, mark));
+                    goal = Goal.Success.INSTANCE;
+                } else {
+                    store.undo(mark);
+                    goal = ifte.elseBranch.get();
+                }
+            } else if (goal instanceof Goal.Once) {
+                final int mark = store.mark();
+                if (!new TrailSearch(store, ((Goal.Once) goal).goal).advance()) {
+                    store.undo(mark);
+                    return false;
+                }
+                goal = Goal.Success.INSTANCE;
+            } else if (goal instanceof Goal.Not) {
+                final int mark = store.mark();
+                final boolean succeeded = new TrailSearch(store, ((Goal.Not) goal).goal).advance();
+                store.undo(mark);
+                if (succeeded) return false;
+                goal = Goal.Success.INSTANCE;
+            } else {
+                final Series<Subst> answers = goal.apply(store.toSubst()).forceDeep();
+                if (answers.isEmpty()) return false;
+                final Series<Subst> rest = answers.tail();
+                if (!(rest instanceof EmptySeries)) {
+                    choicePoints.push(new ChoicePoint(null, rest.iterator(), null, continuation, store.mark()));
+                }
+                store.load(answers.head());
+                goal = Goal.Success.INSTANCE;
+            }
+        }
+    }
+}
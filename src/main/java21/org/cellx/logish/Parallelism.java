@@ -0,0 +1,26 @@
+package org.cellx.logish;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Defaults for or-parallel search.
+ *
+ * @implNote The artifact is a multi-release jar.  This is the version for Java 21 and later, which runs each branch
+ * on a virtual thread, so that a branch waiting for the answers of another one does not hold a platform thread.
+ */
+public final class Parallelism {
+
+    private static final ExecutorService VIRTUAL = Executors.newVirtualThreadPerTaskExecutor();
+
+    private Parallelism() {
+    }
+
+    /**
+     * Returns the executor on which {@link Logish.Goal#par(Logish.Goal...)} runs its branches.
+     */
+    public static Executor defaultExecutor() {
+        return VIRTUAL;
+    }
+}
@@ -0,0 +1,185 @@
+package org.cellx.logish;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.cellx.logish.Logish.*;
+
+/**
+ * A publisher of the answers to a query, which computes them only as subscribers request them.
+ *
+ * <p>Each subscription evaluates the query anew, on the given executor, a step at a time, and never more than
+ * one step at a time.  A step that waits for a {@link FutureSeries}, or for the workers of a parallel search to
+ * find the next answer, does not block: the subscription resumes on completion of the future.  Cancelling the subscription cancels the query, as closing {@link Answers} does.  An
+ * exception thrown while evaluating the query, reifying an answer or delivering it ends the subscription with
+ * {@code onError}.</p>
+ *
+ * @implNote This class is compiled from the Java 9 source root, only when building on Java 9 or later, and needs a
+ * Java 9 runtime.  The rest of the library still runs on Java 8.
+ */
+public final class AnswerPublisher<T> implements Flow.Publisher<T> {
+    private final Executor executor;
+    private final Supplier<Series<Subst>> query;
+    private final Function<Subst, T> reify;
+
+    AnswerPublisher(Executor executor, Supplier<Series<Subst>> query, Function<Subst, T> reify) {
+        this.executor = executor;
+        this.query = query;
+        this.reify = reify;
+    }
+
+    public static AnswerPublisher<Object> publish(Function<Var, Goal> body) {
+        return publish(Parallelism.defaultExecutor(), SearchMode.INTERLEAVING, body);
+    }
+
+    /**
+     * Publishes the answers to a query, computed on the given executor as subscribers request them.
+     */
+    public static AnswerPublisher<Object> publish(Executor executor, SearchMode mode, Function<Var, Goal> body) {
+        final Var q = new Var(0);
+        final Subst subst0 = Subst.empty().put(q.index, q);
+        return new AnswerPublisher<>(executor, () -> {
+            final Iterable<Subst> answers = solve(mode, body.apply(q), subst0);
+            if (answers instanceof Series) return (Series<Subst>) answers;
+            final Iterator<Subst> iterator = answers.iterator();
+            return iterator instanceof OrParallel ?
+                    new ParallelSeries((OrParallel) iterator) : Series.ofIterator(iterator);
+        }, subst -> walkDeep(q, subst));
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber);
+        final AnswerSubscription subscription = new AnswerSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    final class AnswerSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final Cancellation cancellation = new Cancellation(null);
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger scheduled = new AtomicInteger();
+        private volatile Series<Subst> completed;
+        private volatile Throwable failed;
+        private Series<Subst> series = Series.suspension(query);
+        private boolean awaiting, done;
+
+        AnswerSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                failed = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancellation.cancel();
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.getAndIncrement() == 0) executor.execute(this);
+        }
+
+        /**
+         * Drains the query while there is demand.  Only one thread at a time runs it, and it runs again if it
+         * has been scheduled in the meantime.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                try {
+                    cancellation.call(() -> {
+                        drain();
+                        return null;
+                    });
+                } catch (Throwable t) {
+                    // Thrown by the reification or the subscriber: it must not leave the subscription scheduled
+                    fail(t);
+                }
+                missed = scheduled.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            while (!done) {
+                if (cancellation.isCancelled()) {
+                    finish();
+                    return;
+                }
+                if (failed != null) {
+                    fail(failed);
+                    return;
+                }
+                if (awaiting) {
+                    final Series<Subst> result = completed;
+                    if (result == null) return;
+                    awaiting = false;
+                    completed = null;
+                    series = result;
+                } else if (series.hasFuture()) {
+                    await(series.future());
+                } else if (demand.get() == 0) {
+                    return;
+                } else if (series instanceof ParallelSeries && !((ParallelSeries) series).isReady()) {
+                    // Forcing it would block this thread until the workers push an answer
+                    await(((ParallelSeries) series).whenReady());
+                } else if (series.isSuspension()) {
+                    try {
+                        series = series.force();
+                    } catch (Throwable t) {
+                        failed = t;
+                    }
+                } else if (series.isEmpty()) {
+                    finish();
+                    subscriber.onComplete();
+                } else {
+                    final T answer = reify.apply(series.head());
+                    series = series.tail();
+                    demand.getAndUpdate(d -> d == Long.MAX_VALUE ? d : d - 1);
+                    subscriber.onNext(answer);
+                }
+            }
+        }
+
+        private void await(CompletableFuture<Series<Subst>> future) {
+            awaiting = true;
+            future.whenComplete((result, t) -> {
+                if (t != null) failed = t;
+                else completed = result;
+                schedule();
+            });
+        }
+
+        private void fail(Throwable t) {
+            if (done) return;
+            finish();
+            try {
+                subscriber.onError(t);
+            } catch (Throwable ignored) {
+                // A subscriber must not throw from onError, and the subscription is over anyway
+            }
+        }
+
+        private void finish() {
+            done = true;
+            series = null;
+            cancellation.cancel();
+        }
+    }
+}
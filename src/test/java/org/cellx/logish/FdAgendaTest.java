@@ -0,0 +1,68 @@
+package org.cellx.logish;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the propagation agenda, which is internal to {@link Fd}.
+ */
+public class FdAgendaTest {
+
+    static ArrayList<String> drain(Fd.Agenda<String> agenda) {
+        final ArrayList<String> order = new ArrayList<>();
+        while (!agenda.isEmpty()) order.add(agenda.remove());
+        return order;
+    }
+
+    @Test
+    public void testOrderByWeight() {
+        final Fd.Agenda<String> agenda = new Fd.Agenda<>();
+        agenda.add("c", 2);
+        agenda.add("a", 0);
+        agenda.add("d", 9);
+        agenda.add("b", 2);
+        agenda.add("e", 1);
+        // Lighter first, and first in first out within a weight
+        assertEquals(Arrays.asList("a", "e", "c", "b", "d"), drain(agenda));
+    }
+
+    @Test
+    public void testRequeue() {
+        final Fd.Agenda<String> agenda = new Fd.Agenda<>();
+        agenda.add("a", 3);
+        agenda.add("b", 3);
+        // Requeued with a smaller weight: the entry at weight 3 goes stale
+        agenda.add("a", 1);
+        // Requeued with a greater weight: nothing changes
+        agenda.add("b", 5);
+        assertEquals(Arrays.asList("a", "b"), drain(agenda));
+    }
+
+    @Test
+    public void testRequeueWhileStale() {
+        final Fd.Agenda<String> agenda = new Fd.Agenda<>();
+        agenda.add("a", 3);
+        agenda.add("a", 1);
+        assertEquals("a", agenda.remove());
+        // Queued again at the weight of its pending stale entry, it still runs exactly once
+        agenda.add("a", 3);
+        agenda.add("b", 2);
+        assertEquals(Arrays.asList("b", "a"), drain(agenda));
+        assertTrue(agenda.isEmpty());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testRemoveEmpty() {
+        final Fd.Agenda<String> agenda = new Fd.Agenda<>();
+        agenda.add("a", 0);
+        agenda.clear();
+        assertTrue(agenda.isEmpty());
+        agenda.remove();
+    }
+}
@@ -1,13 +1,30 @@
 package org.cellx.logishTest;
 
+import io.vavr.collection.HashSet;
 import io.vavr.collection.List;
 import io.vavr.collection.Stream;
 import org.cellx.logish.Logish;
 import org.cellx.logish.Cons;
+import org.cellx.logish.MappedRelation;
+import org.cellx.logish.Relation;
+import org.cellx.logish.TableSpace;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static org.cellx.logish.Logish.Goal.*;
 import static org.cellx.logish.Logish.run;
@@ -360,4 +377,443 @@ public class BaseTest {
                 }
         );
     }
+
+    @Test
+    public void testDfs1() {
+        executeQuery("test1, depth-first", 10,
+                run(Logish.SearchMode.DFS, q -> fresh((x, y) -> seq(
+                        unify(q, Cons.list(x, y)),
+                        choice(unify(x, 3), unify(x, 4), success()),
+                        choice(unify(y, "a"), unify(y, "b"), success())
+                ))),
+                sols -> {
+                    // 9 solutions in Prolog order: [3, a], [3, b], [3, _], [4, a], ...
+                    assertEquals(9, sols.length());
+                    final List<List<Object>> casted = sols.map(e -> List.ofAll((Cons) e));
+                    assertEquals(List.of(3, 3, 3, 4, 4, 4), casted.take(6).map(List::head));
+                    assertEquals(List.of("a", "b", "a", "b"),
+                            casted.map(e -> e.tail().head()).filter(e -> e instanceof String).take(4));
+                }
+        );
+    }
+
+    @Test
+    public void testDfs2() {
+        executeQuery("append(X, Y, [1, 2, 3]), depth-first", 10,
+                run(Logish.SearchMode.DFS, q -> fresh((x, y) -> seq(
+                        unify(q, Cons.list(x, y)),
+                        appendO(x, y, Cons.list(1, 2, 3))
+                ))),
+                sols -> assertEquals(List.of("(() (1 2 3))", "((1) (2 3))", "((1 2) (3))", "((1 2 3) ())"),
+                        sols.map(Object::toString))
+        );
+    }
+
+    @Test
+    public void testDfs3() {
+        executeQuery("memberCheck(1, [1, 2, 1, q]), not(member(5, [1, 2])), once(member(Q, [a, b, c])), element(Q, [b, a]), depth-first", 10,
+                run(Logish.SearchMode.DFS, q -> seq(
+                        memberCheckO(1, Cons.list(1, 2, 1, q)),
+                        not(memberO(5, Cons.list(1, 2))),
+                        once(memberO(q, Cons.list("a", "b", "c"))),
+                        element(q, List.of("b", "a"))
+                )),
+                sols -> assertEquals(List.of("a"), sols)
+        );
+    }
+
+    @Test
+    public void testDeep1() {
+        final Object big = Cons.fromIterable(Stream.range(0, 20000));
+        executeQuery("length(append([0..19999], [x], Q))", 10,
+                run(q -> appendO(big, Cons.list("x"), q)).map(o -> (Object) List.ofAll((Cons) o).length()),
+                sols -> assertEquals(List.of(20001), sols)
+        );
+    }
+
+    @Test
+    public void testDeep2() {
+        executeQuery("100000 conjuncts unify(Q, 1)", 10,
+                run(q -> seq(List.range(0, 100000).map(i -> unify(q, 1)))),
+                sols -> assertEquals(List.of(1), sols)
+        );
+    }
+
+    @Test
+    public void testDeep3() {
+        final Object big = Cons.fromIterable(Stream.range(0, 20000));
+        executeQuery("length(append([0..19999], [x], Q)), depth-first", 10,
+                run(Logish.SearchMode.DFS, q -> appendO(big, Cons.list("x"), q)).map(o -> (Object) List.ofAll((Cons) o).length()),
+                sols -> assertEquals(List.of(20001), sols)
+        );
+    }
+
+    @Test
+    public void testRunIterator1() {
+        final Logish.Answers<Object> answers = Logish.runIterator(q -> memberO(1, q));
+        int count = 0;
+        while (count < 100 && answers.hasNext()) {
+            assertTrue(answers.next() instanceof Cons);
+            count++;
+        }
+        assertEquals(100, count);
+        answers.close();
+        assertTrue(!answers.hasNext());
+    }
+
+    @Test
+    public void testRunStream1() {
+        try (java.util.stream.Stream<Object> answers = Logish.runStream(Logish.SearchMode.DFS,
+                q -> fresh((x, y) -> seq(unify(q, Cons.list(x, y)), appendO(x, y, Cons.list(1, 2, 3)))))) {
+            assertEquals(4, answers.count());
+        }
+        try (java.util.stream.Stream<Object> answers = Logish.runStream(q -> memberO(q, Cons.list(1, 2, 3)))) {
+            assertEquals(java.util.Arrays.asList(1, 2), answers.limit(2).collect(java.util.stream.Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testPar1() {
+        executeQuery("par(Q = 1, Q = 2, choice(Q = 3, Q = 4))", 10,
+                run(q -> par(unify(q, 1), unify(q, 2), choice(unify(q, 3), unify(q, 4)))),
+                sols -> assertEquals(List.of(1, 2, 3, 4), sols.sortBy(o -> (Integer) o))
+        );
+    }
+
+    @Test
+    public void testParallel1() {
+        final Object list = Cons.fromIterable(Stream.range(0, 10));
+        executeQuery("append(X, Y, [0..9]), Q = [X, Y], or-parallel", 20,
+                run(Logish.SearchMode.PARALLEL, q -> fresh((x, y) -> seq(appendO(x, y, list), unify(q, Cons.list(x, y))))),
+                sols -> assertEquals(
+                        run(Logish.SearchMode.DFS, q -> fresh((x, y) -> seq(appendO(x, y, list), unify(q, Cons.list(x, y)))))
+                                .toSet(),
+                        sols.toSet())
+        );
+    }
+
+    @Test
+    public void testParallel2() {
+        final List<Integer> digits = List.range(0, 10);
+        executeQuery("element(X, [0..9]), element(Y, [0..9]), element(Z, [0..9]), Q = [X, Y, Z], or-parallel", 1000,
+                run(Logish.SearchMode.PARALLEL, q -> fresh((x, y, z) -> seq(
+                        element(x, digits), element(y, digits), element(z, digits), unify(q, Cons.list(x, y, z))))),
+                sols -> {
+                    assertEquals(1000, sols.length());
+                    assertEquals(1000, sols.toSet().size());
+                }
+        );
+    }
+
+    @Test
+    public void testPar2() {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final List<Integer> digits = List.range(0, 10);
+        executeQuery("par(element(X, [0..9]), element(X, [0..9])), element(Y, [0..9]), Q = [X, Y], executor", 200,
+                run(q -> fresh((x, y) -> seq(
+                        par(executor, element(x, digits), element(x, digits)),
+                        element(y, digits), unify(q, Cons.list(x, y))))),
+                sols -> {
+                    assertEquals(200, sols.length());
+                    assertEquals(100, sols.toSet().size());
+                }
+        );
+        executor.shutdown();
+    }
+
+    // Counts its answers Q = N, N + 1, ... as they are produced
+    static Logish.Goal countO(AtomicInteger counter, Object q, int n) {
+        return choice(
+                delayed(() -> {
+                    counter.incrementAndGet();
+                    return unify(q, n);
+                }),
+                delayed(() -> countO(counter, q, n + 1)));
+    }
+
+    @Test
+    public void testPar3() {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        final AtomicInteger counter = new AtomicInteger();
+        final Logish.Answers<Object> answers = Logish.runIterator(
+                q -> par(pool, countO(counter, q, 0), countO(counter, q, 0)));
+        assertTrue(answers.next() instanceof Integer);
+        // Workers park once enough answers are waiting, rather than searching on for as long as the query is open
+        assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+        assertTrue(counter.get() < 1000);
+        // Parked branches resume as answers are taken
+        for (int i = 0; i < 2000; i++) assertTrue(answers.next() instanceof Integer);
+        answers.close();
+        pool.shutdown();
+    }
+
+    // Like countO from 1, once the gate is open
+    static Logish.Goal gatedO(CountDownLatch gate, AtomicInteger counter, Object q) {
+        return delayed(() -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return countO(counter, q, 1);
+        });
+    }
+
+    // In each test, the gated branch is blocked until the query has been cancelled.  Once it runs, it must stop
+    // before producing any answer, while without cancellation it would produce many.
+
+    @Test
+    public void testCancel1() throws InterruptedException {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger counter = new AtomicInteger();
+        final Logish.Answers<Object> answers = Logish.runIterator(
+                q -> par(pool, unify(q, 0), gatedO(gate, counter, q)));
+        assertEquals(0, answers.next());
+        answers.close();
+        assertTrue(!answers.hasNext());
+        gate.countDown();
+        assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+        assertEquals(0, counter.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testCancel2() {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger counter = new AtomicInteger();
+        final Logish.Answers<Object> answers = Logish.runIterator(Logish.SearchMode.PARALLEL,
+                q -> choice(unify(q, 0), gatedO(gate, counter, q)));
+        assertEquals(0, answers.next());
+        answers.cancellation().cancel();
+        assertTrue(!answers.hasNext());
+        gate.countDown();
+        assertTrue(ForkJoinPool.commonPool().awaitQuiescence(10, TimeUnit.SECONDS));
+        assertEquals(0, counter.get());
+    }
+
+    @Test
+    public void testCancel3() {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger counter = new AtomicInteger();
+        // Closing the stream closes its answers
+        try (java.util.stream.Stream<Object> answers = Logish.runStream(
+                q -> par(pool, unify(q, 0), gatedO(gate, counter, q)))) {
+            assertEquals(0, answers.findFirst().get());
+        }
+        gate.countDown();
+        assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+        assertEquals(0, counter.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testCancel4() throws InterruptedException {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger counter = new AtomicInteger();
+        final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+        Logish.Answers<Object> answers = Logish.runIterator(q -> par(pool, unify(q, 0), gatedO(gate, counter, q)));
+        final Logish.Cancellation cancellation = answers.cancellation();
+        final WeakReference<Object> reference = new WeakReference<>(answers, queue);
+        // The query is abandoned after its first answer, as by run(...).take(1), and cancelled once its iterator
+        // has been collected
+        assertEquals(List.of(0), Stream.ofAll(io.vavr.collection.Iterator.ofAll(answers)).take(1).toList());
+        answers = null;
+        Reference<?> collected = null;
+        for (int i = 0; i < 100 && collected == null; i++) {
+            System.gc();
+            collected = queue.remove(100);
+        }
+        assertTrue(collected == reference);
+        assertTrue(cancellation.isCancelled());
+        gate.countDown();
+        assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+        assertEquals(0, counter.get());
+        pool.shutdown();
+    }
+
+    static Logish.Goal edgeO(Object x, Object y) {
+        return choice(
+                seq(unify(x, "a"), unify(y, "b")),
+                seq(unify(x, "b"), unify(y, "c")),
+                seq(unify(x, "c"), unify(y, "a")),
+                seq(unify(x, "c"), unify(y, "d")));
+    }
+
+    // Left-recursive, so that it would loop forever without tabling
+    static Logish.Goal pathO(TableSpace tables, Object x, Object y) {
+        return tabled(tables, "path", new Object[]{x, y}, args -> choice(
+                fresh(z -> seq(pathO(tables, args[0], z), edgeO(z, args[1]))),
+                edgeO(args[0], args[1])));
+    }
+
+    @Test
+    public void testTabled1() {
+        executeQuery("path(a, Q), tabled", 10,
+                run(q -> pathO(new TableSpace(), "a", q)),
+                sols -> assertEquals(HashSet.of("a", "b", "c", "d"), sols.toSet())
+        );
+    }
+
+    @Test
+    public void testTabled2() {
+        final TableSpace tables = new TableSpace();
+        executeQuery("path(X, Y), Q = [X, Y], tabled", 20,
+                run(q -> fresh((x, y) -> seq(pathO(tables, x, y), unify(q, Cons.list(x, y))))),
+                sols -> {
+                    assertEquals(12, sols.length());
+                    assertEquals(12, sols.toSet().size());
+                }
+        );
+        // The tables are complete, and reused by a later query
+        final int size = tables.size();
+        assertEquals(12, run(q -> fresh((x, y) -> seq(pathO(tables, x, y), unify(q, Cons.list(x, y))))).length());
+        assertEquals(size, tables.size());
+    }
+
+    static Logish.Goal countedEdgeO(TableSpace tables, AtomicInteger evaluations, Object x, Object y) {
+        return tabled(tables, "edge", new Object[]{x, y}, args -> {
+            evaluations.incrementAndGet();
+            return edgeO(args[0], args[1]);
+        });
+    }
+
+    @Test
+    public void testTabled3() {
+        final TableSpace tables = new TableSpace(2);
+        final AtomicInteger evaluations = new AtomicInteger();
+        final Function<Object, Integer> query = x -> {
+            run(q -> countedEdgeO(tables, evaluations, x, q)).toList();
+            return evaluations.get();
+        };
+        assertEquals(1, (int) query.apply("a"));
+        assertEquals(2, (int) query.apply("b"));
+        // The table of a is used again, so that the one of b becomes the least recently used
+        assertEquals(2, (int) query.apply("a"));
+        assertEquals(3, (int) query.apply("c"));
+        assertEquals(2, tables.size());
+        assertEquals(3, (int) query.apply("a"));
+        // The table of b has been evicted
+        assertEquals(4, (int) query.apply("b"));
+        assertEquals(2, tables.size());
+    }
+
+    @Test
+    public void testRelation1() {
+        final Relation parent = new Relation(2)
+                .add("tom", "bob").add("tom", "liz").add("bob", "ann").add("bob", "pat").add("pat", "jim");
+        executeQuery("parent(bob, Q)", 10,
+                run(q -> parent.query("bob", q)),
+                sols -> assertEquals(List.of("ann", "pat"), sols.toList())
+        );
+        executeQuery("parent(Q, jim)", 10,
+                run(q -> parent.query(q, "jim")),
+                sols -> assertEquals(List.of("pat"), sols.toList())
+        );
+        executeQuery("parent(X, Y), parent(Y, Z), Q = [X, Z]", 10,
+                run(q -> fresh((x, y, z) -> seq(parent.query(x, y), parent.query(y, z), unify(q, Cons.list(x, z))))),
+                sols -> assertEquals(HashSet.of(Cons.list("tom", "ann"), Cons.list("tom", "pat"), Cons.list("bob", "jim")),
+                        sols.toSet())
+        );
+        parent.add("ann", "sue");
+        executeQuery("parent(ann, Q), after adding", 10,
+                run(q -> parent.query("ann", q)),
+                sols -> assertEquals(List.of("sue"), sols.toList())
+        );
+        executeQuery("parent(tom, pat)", 10,
+                run(q -> parent.query("tom", "pat")),
+                sols -> assertTrue(sols.isEmpty())
+        );
+    }
+
+    @Test
+    public void testMappedRelation1() throws IOException {
+        final Path path = Files.createTempFile("logish", ".facts");
+        try {
+            MappedRelation.write(path, 3, List.of(
+                    new Object[]{"tom", "bob", 1}, new Object[]{"tom", "liz", 2}, new Object[]{"bob", "ann", 3},
+                    new Object[]{"bob", "pat", 4}, new Object[]{"pat", "jim", 5}));
+            final MappedRelation parent = MappedRelation.open(path);
+            assertEquals(5, parent.size());
+            executeQuery("parent(bob, Q, _)", 10,
+                    run(q -> fresh(n -> parent.query("bob", q, n))),
+                    sols -> assertEquals(List.of("ann", "pat"), sols.toList())
+            );
+            executeQuery("parent(Q, _, 5)", 10,
+                    run(q -> fresh(x -> parent.query(q, x, 5))),
+                    sols -> assertEquals(List.of("pat"), sols.toList())
+            );
+            executeQuery("parent(X, Y, _), parent(Y, Z, _), Q = [X, Z]", 10,
+                    run(q -> fresh((x, y, z) -> fresh((m, n) -> seq(
+                            parent.query(x, y, m), parent.query(y, z, n), unify(q, Cons.list(x, z)))))),
+                    sols -> assertEquals(HashSet.of(Cons.list("tom", "ann"), Cons.list("tom", "pat"),
+                            Cons.list("bob", "jim")), sols.toSet())
+            );
+            executeQuery("parent(tom, ann, _), parent(sue, _, _), parent(_, _, tom)", 10,
+                    run(q -> fresh((x, y) -> choice(parent.query("tom", "ann", x), parent.query("sue", x, y),
+                            parent.query(x, y, "tom")))),
+                    sols -> assertTrue(sols.isEmpty())
+            );
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testTrail1() {
+        final List<Function<Logish.Var, Logish.Goal>> queries = List.of(
+                q -> fresh((x, y) -> seq(
+                        unify(q, Cons.list(x, y)),
+                        choice(unify(x, 3), unify(x, 4), success()),
+                        choice(unify(y, "a"), unify(y, "b"), success()))),
+                q -> fresh((x, y) -> seq(unify(q, Cons.list(x, y)), appendO(x, y, Cons.list(1, 2, 3)))),
+                q -> fresh((x, y) -> seq(appendO(Cons.list(1), x, Cons.list(1, 2)), appendO(x, y, q))),
+                q -> seq(
+                        memberCheckO(1, Cons.list(1, 2, 1, q)),
+                        not(memberO(5, Cons.list(1, 2))),
+                        once(memberO(q, Cons.list("a", "b", "c"))),
+                        element(q, List.of("b", "a"))),
+                q -> fresh((x, y) -> seq(
+                        ifte(memberO(x, Cons.list(1, 2, 3)), () -> unify(y, "then"), () -> unify(y, "else")),
+                        map(Integer.class, x, i -> i * 10, q))));
+        for (Function<Logish.Var, Logish.Goal> query : queries) {
+            executeQuery("trail", 20,
+                    run(Logish.SearchMode.TRAIL, query),
+                    sols -> assertEquals(run(Logish.SearchMode.DFS, query).take(20).toList(), sols.toList())
+            );
+        }
+    }
+
+    // Aliases n fresh variables in a chain, each newer one bound to the older one
+    static Logish.Goal aliasO(Object last, int n, Object q) {
+        if (n == 0) return seq(unify(q, Cons.list(last, last)), unify(last, 42));
+        return fresh(v -> seq(unify(v, last), aliasO(v, n - 1, q), unify(v, 42)));
+    }
+
+    @Test
+    public void testTrail2() {
+        final Function<Logish.Var, Logish.Goal> query = q -> fresh((x, y) -> seq(
+                aliasO(x, 1000, y), choice(unify(q, y), seq(unify(x, 43), unify(q, y)), unify(q, x))));
+        executeQuery("alias chain of 1000, trail", 10,
+                run(Logish.SearchMode.TRAIL, query),
+                sols -> assertEquals(run(Logish.SearchMode.DFS, query).toList(), sols.toList())
+        );
+    }
+
+    @Test
+    public void testAttributeDomain1() {
+        final Logish.AttributeDomain domain = Logish.AttributeDomain.register("test:same", true);
+        assertEquals(domain.id(), Logish.AttributeDomain.register("test:same", true).id());
+        assertEquals(domain, Logish.AttributeDomain.named("test:same"));
+        assertTrue(domain.delegating());
+        assertTrue(Logish.AttributeDomain.register("test:other", true).id() != domain.id());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAttributeDomain2() {
+        Logish.AttributeDomain.register("test:conflict", false);
+        Logish.AttributeDomain.register("test:conflict", true);
+    }
 }
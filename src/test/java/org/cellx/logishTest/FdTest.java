@@ -4,13 +4,19 @@ import io.vavr.Tuple2;
 import io.vavr.collection.List;
 import io.vavr.collection.Stream;
 import org.cellx.logish.Cons;
+import org.cellx.logish.Logish;
+import org.cellx.logish.Logish.Var;
 import org.junit.Test;
 
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static org.cellx.logish.Fd.*;
 import static org.cellx.logish.Logish.Goal.*;
 import static org.cellx.logish.Logish.runC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class FdTest {
 
@@ -126,6 +132,73 @@ public class FdTest {
         );
     }
 
+    @Test
+    public void testRange1() {
+        executeQueryC("range(Q, 1, 1000), range(Q, 990, 2000), labeling(Q)", 20,
+                runC(q -> seq(range(q, 1, 1000), range(q, 990, 2000), labeling(q))),
+                sols -> assertEquals(List.rangeClosed(990, 1000), sols.map(o -> (Integer) o).sorted())
+        );
+    }
+
+    @Test
+    public void testRange2() {
+        executeQueryC("range(Q, -100, 100), in(Q, -200, -64, -63, 0, 63, 64, 200), labeling(Q)", 20,
+                runC(q -> seq(range(q, -100, 100), in(q, -200, -64, -63, 0, 63, 64, 200), labeling(q))),
+                sols -> assertEquals(List.of(-64, -63, 0, 63, 64), sols.map(o -> (Integer) o).sorted())
+        );
+    }
+
+    @Test
+    public void testRanges1() {
+        executeQueryC("range(Q, 0, 1000000), ranges(Q, 0, 9, 11, 999990, 999999, 2000000)", 10,
+                runC(q -> seq(range(q, 0, 1000000), ranges(q, 0, 9, 11, 999990, 999999, 2000000)))
+        );
+    }
+
+    @Test
+    public void testRanges2() {
+        executeQueryC("ranges(Q, 0, 9, 100, 1000000), Q + 995 #= X, range(X, 1000, 1100), labeling(Q)", 200,
+                runC(q -> fresh(x -> seq(
+                        ranges(q, 0, 9, 100, 1000000),
+                        plusO(q, 995, x),
+                        range(x, 1000, 1100),
+                        labeling(q)))),
+                sols -> assertEquals(List.rangeClosed(5, 9).appendAll(List.rangeClosed(100, 105)),
+                        sols.map(o -> (Integer) o).sorted())
+        );
+    }
+
+    @Test
+    public void testRanges3() {
+        executeQueryC("range(X, 0, 1000000), range(Q, 0, 1000000), ranges(Q, 0, 2, 1000, 1000000), allDifferent(X, Q), X = 1", 10,
+                runC(q -> fresh(x -> seq(
+                        range(x, 0, 1000000),
+                        range(q, 0, 1000000),
+                        ranges(q, 0, 2, 1000, 1000000),
+                        allDifferentO(x, q),
+                        unify(x, 1))))
+        );
+    }
+
+    @Test
+    public void testRanges4() {
+        // The first interval has more than 2^31 values
+        executeQueryC("ranges(Q, MIN, 0, 2, MAX), labeling([first_fail, median, bisect], Q)", 3,
+                runC(q -> seq(ranges(q, Integer.MIN_VALUE, 0, 2, Integer.MAX_VALUE), labeling(q))),
+                sols -> assertEquals(List.of(Integer.MIN_VALUE, Integer.MIN_VALUE + 1, Integer.MIN_VALUE + 2), sols)
+        );
+        final LabelingOptions options = LabelingOptions.defaults()
+                .variables(VariableSelection.INPUT_ORDER).values(ValueChoice.MEDIAN).branching(Branching.ENUMERATE);
+        executeQueryC("ranges(Q, MIN, 0, 2, MAX), labeling([input_order, median, enumerate], Q)", 1,
+                runC(q -> seq(ranges(q, Integer.MIN_VALUE, 0, 2, Integer.MAX_VALUE), labeling(options, q))),
+                sols -> {
+                    assertEquals(1, sols.length());
+                    final int value = (Integer) sols.head();
+                    assertTrue(value <= 0 || value >= 2);
+                }
+        );
+    }
+
     @Test
     public void testIn1() {
         executeQueryC("in(Q, 2, 4, 6, 8), in(Q, 0, 1, 2, 3, 4)", 10,
@@ -263,6 +336,284 @@ public class FdTest {
         );
     }
 
+    @Test
+    public void testLabeling1() {
+        executeQueryC("Q = [X, Y, Z], X::1..4, Y::1..4, Z::1..4, allDifferent(X, Y, Z), labeling(X, Y, Z)", 30,
+                runC(q -> fresh((x, y, z) -> seq(
+                        unify(q, Cons.list(x, y, z)),
+                        domAll(List.rangeClosed(1, 4), x, y, z),
+                        allDifferentO(x, y, z),
+                        labeling(x, y, z)
+                ))),
+                sols -> {
+                    // 4 * 3 * 2 = 24 distinct solutions
+                    assertEquals(24, sols.length());
+                    assertEquals(24, sols.distinct().length());
+                }
+        );
+    }
+
+    @Test
+    public void testLabeling2() {
+        final LabelingOptions options = LabelingOptions.defaults()
+                .variables(VariableSelection.INPUT_ORDER).values(ValueChoice.MIN).branching(Branching.ENUMERATE);
+        executeQueryC("Q = [X, Y, Z], Q::1..3, allDifferent(Q), labeling([input_order, min, enumerate], Q)", 10,
+                runC(q -> fresh((x, y, z) -> seq(
+                        unify(q, Cons.list(x, y, z)),
+                        domAll(List.rangeClosed(1, 3), x, y, z),
+                        allDifferentO(x, y, z),
+                        labeling(options, x, y, z)
+                ))),
+                sols -> assertEquals(List.of("(1 2 3)", "(1 3 2)", "(2 1 3)", "(2 3 1)", "(3 1 2)", "(3 2 1)"),
+                        sols.map(Object::toString))
+        );
+    }
+
+    @Test
+    public void testLabeling3() {
+        final LabelingOptions options = LabelingOptions.defaults()
+                .variables(VariableSelection.INPUT_ORDER).values(ValueChoice.MAX).branching(Branching.BISECT);
+        executeQueryC("Q::1..5, labeling([input_order, max, bisect], Q)", 10,
+                runC(q -> seq(range(q, 1, 5), labeling(options, q))),
+                sols -> assertEquals(List.of(5, 4, 3, 2, 1), sols)
+        );
+    }
+
+    @Test
+    public void testLabeling4() {
+        for (final VariableSelection variables : VariableSelection.values()) {
+            for (final ValueChoice values : ValueChoice.values()) {
+                for (final Branching branching : Branching.values()) {
+                    final LabelingOptions options = LabelingOptions.defaults()
+                            .variables(variables).values(values).branching(branching);
+                    executeQueryC("Q = [X, Y, Z], X::1..4, Y::[1, 3, 4], Z::1..4, allDifferent(Q), X + Y #= Z, " +
+                                    "labeling([" + variables + ", " + values + ", " + branching + "], Q)", 30,
+                            runC(q -> fresh((x, y, z) -> seq(
+                                    unify(q, Cons.list(x, y, z)),
+                                    range(x, 1, 4),
+                                    dom(y, List.of(1, 3, 4)),
+                                    range(z, 1, 4),
+                                    allDifferentO(x, y, z),
+                                    plusO(x, y, z),
+                                    labeling(options, x, y, z)
+                            ))),
+                            sols -> assertEquals(List.of("(1 3 4)", "(2 1 3)", "(3 1 4)"),
+                                    sols.map(Object::toString).sorted())
+                    );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLabeling5() {
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final LabelingOptions options = LabelingOptions.defaults().parallel(pool, 4);
+            executeQueryC("Q = [A, B, C, D, E, F], Q::1..6, allDifferent(Q), labeling([parallel(4)], Q)", 1000,
+                    runC(q -> fresh((a, b, c) -> fresh((d, e, f) -> seq(
+                            unify(q, Cons.list(a, b, c, d, e, f)),
+                            domAll(List.rangeClosed(1, 6), a, b, c, d, e, f),
+                            allDifferentO(a, b, c, d, e, f),
+                            labeling(options, a, b, c, d, e, f)
+                    )))),
+                    sols -> {
+                        // 6! permutations, each once
+                        assertEquals(720, sols.length());
+                        assertEquals(720, sols.distinct().length());
+                    }
+            );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testLabeling6() {
+        // Multiples of 3 up to 300, intersected with a range, make a bitset domain
+        final List<Integer> multiples = List.rangeClosedBy(0, 300, 3);
+        final LabelingOptions median = LabelingOptions.defaults()
+                .variables(VariableSelection.INPUT_ORDER).values(ValueChoice.MEDIAN).branching(Branching.ENUMERATE);
+        executeQueryC("Q::0..300, Q::[0, 3, ..., 300], labeling([input_order, median, enumerate], Q)", 200,
+                runC(q -> seq(range(q, 0, 300), dom(q, multiples), labeling(median, q))),
+                sols -> {
+                    assertEquals(150, sols.head());
+                    assertEquals(multiples, sols.map(o -> (Integer) o).sorted());
+                }
+        );
+        final LabelingOptions regret = LabelingOptions.defaults()
+                .variables(VariableSelection.MAX_REGRET).values(ValueChoice.MIN).branching(Branching.ENUMERATE);
+        executeQueryC("Q = [X, Y], X::0..300, X::[0, 3, ..., 300], Y::0..300, X + Y #= 300, labeling([max_regret], Q)", 200,
+                runC(q -> fresh((x, y) -> seq(
+                        unify(q, Cons.list(x, y)),
+                        range(x, 0, 300),
+                        dom(x, multiples),
+                        range(y, 0, 300),
+                        plusO(x, y, 300),
+                        labeling(regret, x, y)))),
+                sols -> assertEquals(multiples.map(x -> Cons.list(x, 300 - x).toString()),
+                        sols.map(Object::toString).sortBy(str -> Integer.parseInt(str.substring(1, str.indexOf(' ')))))
+        );
+    }
+
+    @Test
+    public void testMaximize1() {
+        executeQueryC("Q = [X, Y, P], X::0..10, Y::0..10, 3X + 5Y #=< 20, P #= 4X + 7Y, maximize(P, labeling([X, Y]))", 30,
+                runC(q -> fresh((x, y, p) -> seq(
+                        unify(q, Cons.list(x, y, p)),
+                        domAll(List.rangeClosed(0, 10), x, y),
+                        sumLeqO(new int[]{3, 5}, new Var[]{x, y}, 20),
+                        sumO(new int[]{4, 7}, new Var[]{x, y}, p),
+                        maximizeO(p, labeling(x, y))
+                ))),
+                sols -> {
+                    final List<Integer> objectives = sols.map(o -> (Integer) List.ofAll((Cons) o).last());
+                    assertEquals(objectives.distinct().sorted(), objectives);
+                    assertEquals("(0 4 28)", sols.last().toString());
+                }
+        );
+    }
+
+    @Test
+    public void testMinimize1() {
+        executeQueryC("Q::1..5, X::1..5, allDifferent(Q, X), minimize(Q, labeling([X, Q]))", 30,
+                runC(q -> fresh(x -> seq(
+                        domAll(List.rangeClosed(1, 5), q, x),
+                        allDifferentO(q, x),
+                        minimizeO(q, labeling(x, q))
+                ))),
+                sols -> assertEquals(1, (int) (Integer) sols.last())
+        );
+    }
+
+    @Test
+    public void testAllDifferent1() {
+        executeQueryC("X::1..3, Y::1..3, Z::1..3, Q::1..3, allDifferent(bounds, X, Y, Z, Q)", 10,
+                runC(q -> fresh((x, y, z) -> seq(
+                        domAll(List.rangeClosed(1, 3), x, y, z, q),
+                        allDifferentO(Consistency.BOUNDS, x, y, z, q)
+                ))),
+                sols -> assertEquals(0, sols.length())
+        );
+    }
+
+    @Test
+    public void testAllDifferent2() {
+        executeQueryC("X::1..2, Y::1..2, Q::1..3, allDifferent(bounds, X, Y, Q)", 10,
+                runC(q -> fresh((x, y) -> seq(
+                        domAll(List.rangeClosed(1, 2), x, y),
+                        dom(q, List.rangeClosed(1, 3)),
+                        allDifferentO(Consistency.BOUNDS, x, y, q)
+                ))),
+                sols -> assertEquals(List.of(3), sols)
+        );
+    }
+
+    @Test
+    public void testAllDifferent3() {
+        executeQueryC("X::[1, 3], Y::[1, 3], Q::1..3, allDifferent(domain, X, Y, Q)", 10,
+                runC(q -> fresh((x, y) -> seq(
+                        domAll(List.of(1, 3), x, y),
+                        dom(q, List.rangeClosed(1, 3)),
+                        allDifferentO(Consistency.DOMAIN, x, y, q)
+                ))),
+                sols -> assertEquals(List.of(2), sols)
+        );
+    }
+
+    @Test
+    public void testAllDifferent4() {
+        executeQueryC("Q = [A, B, C, D, E], Q::1..5, allDifferent(domain, Q), A + B #= 3, labeling(Q)", 20,
+                runC(q -> fresh((a, b, c) -> fresh((d, e) -> seq(
+                        unify(q, Cons.list(a, b, c, d, e)),
+                        domAll(List.rangeClosed(1, 5), a, b, c, d, e),
+                        allDifferentO(Consistency.DOMAIN, a, b, c, d, e),
+                        plusO(a, b, 3),
+                        labeling(a, b, c, d, e)
+                )))),
+                sols -> {
+                    // A and B take 1 and 2 in either order, the rest permute 3..5
+                    assertEquals(12, sols.length());
+                    assertEquals(12, sols.distinct().length());
+                }
+        );
+    }
+
+    @Test
+    public void testLeq1() {
+        executeQueryC("X::1..10, Q::1..10, X #< Q, Q #=< 5, X #>= 3", 10,
+                runC(q -> fresh(x -> seq(
+                        range(x, 1, 10),
+                        range(q, 1, 10),
+                        ltO(x, q),
+                        leqO(q, 5),
+                        geqO(x, 3),
+                        labeling(q)
+                ))),
+                sols -> assertEquals(List.of(4, 5), sols.map(o -> (Integer) o).sorted())
+        );
+    }
+
+    @Test
+    public void testLeq2() {
+        executeQueryC("Q = [X, Y, Z], X #< Y, Y #< Z, Z #< X", 10,
+                runC(q -> fresh((x, y, z) -> seq(
+                        unify(q, Cons.list(x, y, z)),
+                        range(x, 0, 1000),
+                        ltO(x, y),
+                        ltO(y, z),
+                        ltO(z, x)
+                ))),
+                sols -> assertEquals(0, sols.length())
+        );
+    }
+
+    @Test
+    public void testLeq3() {
+        executeQueryC("Q = [X, Y], Y::0..5, X #> Y, X #=< 2", 10,
+                runC(q -> fresh((x, y) -> seq(
+                        unify(q, Cons.list(x, y)),
+                        range(y, 0, 5),
+                        gtO(x, y),
+                        leqO(x, 2),
+                        labeling(x, y)
+                ))),
+                sols -> assertEquals(3, sols.length())
+        );
+    }
+
+    @Test
+    public void testSum1() {
+        executeQueryC("Q = [A, B, C, D, E, F], Q::0..1, A + 2B + 3C + 4D + 5E + 6F = 6, labeling(Q)", 30,
+                runC(q -> fresh((a, b, c) -> fresh((d, e, f) -> seq(
+                        unify(q, Cons.list(a, b, c, d, e, f)),
+                        domAll(List.rangeClosed(0, 1), a, b, c, d, e, f),
+                        sumO(new int[]{1, 2, 3, 4, 5, 6}, new Var[]{a, b, c, d, e, f}, 6),
+                        labeling(a, b, c, d, e, f)
+                )))),
+                sols -> {
+                    // {6}, {1, 5}, {2, 4}, {1, 2, 3}
+                    assertEquals(4, sols.length());
+                    assertEquals(List.of("(0 0 0 0 0 1)", "(0 1 0 1 0 0)", "(1 0 0 0 1 0)", "(1 1 1 0 0 0)"),
+                            sols.map(Object::toString).sorted());
+                }
+        );
+    }
+
+    @Test
+    public void testSum2() {
+        executeQueryC("Q = [X, Y, Z], X::0..3, Y::0..3, X + Y =< Z, Z = 2, labeling(X, Y)", 30,
+                runC(q -> fresh((x, y, z) -> seq(
+                        unify(q, Cons.list(x, y, z)),
+                        domAll(List.rangeClosed(0, 3), x, y),
+                        sumLeqO(new int[]{1, 1}, new Var[]{x, y}, z),
+                        unify(z, 2),
+                        labeling(x, y)
+                ))),
+                sols -> assertEquals(6, sols.length())
+        );
+    }
+
     @Test
     public void sendMoreMoney() {
         // s=9, e=5, n=6, d=7, m=1, o=0, r=8, y=2
@@ -283,5 +634,18 @@ public class FdTest {
                 ))))
         );
     }
-}
 
+    @Test
+    public void testTrail1() {
+        final Function<Var, Logish.Goal> query = q -> fresh(x -> seq(
+                ranges(q, 0, 9, 100, 1000000),
+                plusO(q, 995, x),
+                range(x, 1000, 1100),
+                memberO(x, Cons.list(1000, 1001, 1002, 1099)),
+                labeling(q)));
+        executeQueryC("ranges(Q, 0, 9, 100, 1000000), Q + 995 #= X, range(X, 1000, 1100), member(X, [...]), labeling(Q), trail", 20,
+                runC(Logish.SearchMode.TRAIL, query),
+                sols -> assertEquals(runC(Logish.SearchMode.DFS, query).map(Tuple2::_1).toList(), sols)
+        );
+    }
+}
@@ -4,6 +4,7 @@ import com.pholser.junit.quickcheck.Property;
 import com.pholser.junit.quickcheck.generator.InRange;
 import com.pholser.junit.quickcheck.runner.JUnitQuickcheck;
 import org.cellx.logish.IntMap;
+import org.cellx.logish.IntTrie;
 import org.junit.Assert;
 import org.junit.runner.RunWith;
 import org.slf4j.Logger;
@@ -46,6 +47,41 @@ public class IntMapTests {
         compareMapKeysAndSet(reducedMap, set);
     }
 
+    @Property(trials = 1000)
+    public void testTrieInsertion(HashSet<@InRange(min = "-5000", max = "5000") Integer> set) {
+        final IntMap<Integer> empty = IntTrie.empty();
+        final IntMap<Integer> map = empty.withAll(set, i -> IntMap.entry(i, i));
+        map.checkConsistency();
+        compareMapKeysAndSet(map, set);
+        if (!set.isEmpty()) {
+            Assert.assertEquals((int) new TreeSet<>(set).first(), map.minKey());
+            Assert.assertEquals((int) new TreeSet<>(set).last(), map.maxKey());
+        }
+    }
+
+    @Property(trials = 1000)
+    public void testTrieDeletion(HashSet<@InRange(min = "-100", max = "100") Integer> minusSet) {
+        final TreeSet<Integer> set = new TreeSet<>();
+        for (int i = -100; i <= 100; i++) set.add(i * 37);
+        set.add(Integer.MIN_VALUE);
+        set.add(Integer.MAX_VALUE);
+
+        final IntMap<Integer> empty = IntTrie.empty();
+        final IntMap<Integer> fullMap = empty.withAll(set, i -> IntMap.entry(i, i));
+
+        final Set<Integer> removed = new HashSet<>();
+        for (Integer i : minusSet) removed.add(i * 37);
+        set.removeAll(removed);
+
+        final IntMap<Integer> reducedMap = fullMap.withoutKeys(removed, i -> i);
+
+        reducedMap.checkConsistency();
+        fullMap.checkConsistency();
+        compareMapKeysAndSet(reducedMap, set);
+        // Removing the greatest key finds the next one
+        Assert.assertEquals((int) set.lower(Integer.MAX_VALUE), reducedMap.without(Integer.MAX_VALUE).maxKey());
+    }
+
     protected  <V> void compareMapKeysAndSet(IntMap<V> map, Set<Integer> set) {
         // The size must be the same
         Assert.assertEquals(set.size(), map.size());
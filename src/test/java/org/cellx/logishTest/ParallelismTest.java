@@ -0,0 +1,30 @@
+package org.cellx.logishTest;
+
+import org.cellx.logish.Parallelism;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ParallelismTest {
+
+    // Failsafe runs the tests on the multi-release jar on JDK 21+, where the Java 21 version of Parallelism must
+    // have replaced the Java 8 one.  Surefire runs them on the base classes, where it does not apply.
+
+    @Test
+    public void testDefaultExecutor() throws Exception {
+        assumeTrue(Boolean.getBoolean("logish.multiReleaseJar"));
+        final CompletableFuture<Object> virtual = new CompletableFuture<>();
+        Parallelism.defaultExecutor().execute(() -> {
+            try {
+                virtual.complete(Thread.class.getMethod("isVirtual").invoke(Thread.currentThread()));
+            } catch (ReflectiveOperationException e) {
+                virtual.completeExceptionally(e);
+            }
+        });
+        assertTrue((Boolean) virtual.get(10, TimeUnit.SECONDS));
+    }
+}
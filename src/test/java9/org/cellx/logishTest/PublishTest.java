@@ -0,0 +1,184 @@
+package org.cellx.logishTest;
+
+import io.vavr.collection.List;
+import org.cellx.logish.AnswerPublisher;
+import org.cellx.logish.Cons;
+import org.cellx.logish.Logish;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.cellx.logish.Logish.Goal.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PublishTest {
+
+    @Test
+    public void testPublish1() throws InterruptedException {
+        final java.util.List<Object> received = new java.util.concurrent.CopyOnWriteArrayList<>();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        AnswerPublisher.publish(q -> memberO(1, q)).subscribe(new Flow.Subscriber<Object>() {
+            Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(Object item) {
+                received.add(item);
+                if (received.size() < 5) {
+                    subscription.request(1);
+                } else {
+                    subscription.cancel();
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.set(throwable);
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertEquals(5, received.size());
+        assertTrue(received.stream().allMatch(o -> o instanceof Cons));
+    }
+
+    @Test
+    public void testPublish2() throws InterruptedException {
+        final java.util.List<Object> received = new java.util.concurrent.CopyOnWriteArrayList<>();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        AnswerPublisher.publish(q -> par(unify(q, 1), unify(q, 2), unify(q, 3))).subscribe(new Flow.Subscriber<Object>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Object item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.set(throwable);
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertEquals(List.of(1, 2, 3), List.ofAll(received).sortBy(o -> (Integer) o));
+    }
+
+    @Test
+    public void testPublish3() throws InterruptedException {
+        final IllegalStateException thrown = new IllegalStateException("rejected");
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        // A subscriber that throws from onNext gets the exception back through onError
+        AnswerPublisher.publish(q -> memberO(1, q)).subscribe(new Flow.Subscriber<Object>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Object item) {
+                throw thrown;
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.set(throwable);
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(thrown, error.get());
+    }
+
+    static Logish.Goal gatedO(CountDownLatch gate, Object q, Object value) {
+        return delayed(() -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return unify(q, value);
+        });
+    }
+
+    @Test
+    public void testPublish4() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final java.util.List<Object> received = new java.util.concurrent.CopyOnWriteArrayList<>();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        try {
+            AnswerPublisher.publish(executor, Logish.SearchMode.INTERLEAVING,
+                    q -> par(pool, gatedO(gate, q, 1), gatedO(gate, q, 2))).subscribe(new Flow.Subscriber<Object>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(Object item) {
+                    received.add(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    error.set(throwable);
+                    done.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                    done.countDown();
+                }
+            });
+            // While the workers wait at the gate, the only thread of the executor is free to run other tasks
+            assertTrue(executor.submit(() -> true).get(10, TimeUnit.SECONDS));
+        } finally {
+            gate.countDown();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertEquals(List.of(1, 2), List.ofAll(received).sortBy(o -> (Integer) o));
+        executor.shutdown();
+        pool.shutdown();
+    }
+}